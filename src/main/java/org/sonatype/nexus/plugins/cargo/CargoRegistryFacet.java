@@ -25,7 +25,7 @@ import org.sonatype.nexus.repository.view.Response;
 
 @Exposed
 public interface CargoRegistryFacet
-        extends Facet
+        extends Facet, CargoDownloadFacet
 {
     public void writeConfigJson() throws Exception;
 
@@ -38,4 +38,18 @@ public interface CargoRegistryFacet
     public Content downloadMetadata(CrateCoordinates crateId) throws IOException;
 
     public Content downloadTarball(CrateCoordinates crateId) throws IOException;
+
+    /* Whether the write policy lets a published crate version be replaced. */
+    public boolean isRedeployAllowed();
+
+    public Content downloadIndexFile(String entryPath) throws IOException;
+
+    /* Repacks the index's git repository, see GitRepositoryFacet.repack(). Returns the objects packed. */
+    public int repackIndex() throws IOException;
+
+    /* Collapses the index history into one commit, see GitRepositoryFacet.squash(). */
+    public void squashIndex() throws IOException;
+
+    /* Deletes unreachable index objects, see GitRepositoryFacet.collectGarbage(). Returns how many. */
+    public int collectIndexGarbage() throws IOException;
 }
@@ -14,10 +14,15 @@
 package org.sonatype.nexus.plugins.cargo;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.function.UnaryOperator;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.eclipse.jgit.lib.ObjectId;
+import org.sonatype.nexus.blobstore.api.Blob;
 import org.sonatype.nexus.plugins.cargo.git.repo.Repository;
 import org.sonatype.nexus.repository.Facet;
 import org.sonatype.nexus.repository.Facet.Exposed;
@@ -34,4 +39,64 @@ public interface GitRepositoryFacet
 
     public void replaceFile(Repository repository, String branch, String entryPath, byte[] bytes)
             throws IOException;
+
+    /**
+     * Rewrites a single file on the branch. The update receives the current contents of the file, or
+     * null if it does not exist yet, and returns the new contents.
+     */
+    public void updateFile(Repository repository, String branch, String entryPath, UnaryOperator<byte[]> update)
+            throws IOException;
+
+    /**
+     * Returns the smart HTTP ref advertisement for git-upload-pack, including the service line. It is
+     * rendered once and served from memory until a ref of the repository changes.
+     */
+    public byte[] getUploadPackAdvertisement(Repository repository) throws IOException;
+
+    /**
+     * Returns the advertisement for the protocol selected by the parameters of the client's
+     * Git-Protocol header. Only clients for which {@link #isProtocolV2} holds get something other
+     * than {@link #getUploadPackAdvertisement(Repository)}: the v2 capability advertisement, which
+     * lists no refs and is rendered on every call.
+     */
+    public byte[] getUploadPackAdvertisement(Repository repository, Collection<String> protocol_parameters)
+            throws IOException;
+
+    /**
+     * Returns whether a client is served with protocol v2: it must ask for it in its Git-Protocol
+     * header, and the repository must have it enabled, which it has if nexus.cargo.git.protocolV2 is
+     * set.
+     */
+    public boolean isProtocolV2(Repository repository, Collection<String> protocol_parameters);
+
+    @Nullable
+    public byte[] readFile(Repository repository, String branch, String entryPath) throws IOException;
+
+    /**
+     * Returns a pack of every object reachable from the repository's refs if it holds everything in
+     * wants, building it first if the refs moved since it was last built. Returns null if some of
+     * wants are not current ref values.
+     */
+    @Nullable
+    public Blob getFullPack(Repository repository, Set<ObjectId> wants) throws IOException;
+
+    /**
+     * Writes a pack of every object reachable from the repository's refs, with reachability bitmaps,
+     * replacing the loose objects and older packs it covers. Loose objects left over are moved into
+     * packs of at most a configured number of objects. Returns the number of objects packed.
+     */
+    public int repack(Repository repository) throws IOException;
+
+    /**
+     * Replaces the history of the branch with a single commit of its current tree and prunes the
+     * objects which are no longer reachable and were neither stored nor reused within the garbage
+     * collection grace period. Edits to the branch on this node wait until the squash is done.
+     */
+    public void squash(Repository repository, String branch) throws IOException;
+
+    /**
+     * Deletes the objects which are not reachable from any ref and are older than a configured grace
+     * period. Returns the number of objects deleted.
+     */
+    public int collectGarbage(Repository repository) throws IOException;
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.git;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.google.common.io.ByteStreams;
+
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.SideBandOutputStream;
+import org.sonatype.nexus.blobstore.api.Blob;
+import org.sonatype.nexus.repository.view.Payload;
+
+/*
+ * Answers a full clone with a pack that was built earlier. The pack is streamed from the blob
+ * store behind the "NAK" that ends negotiation, framed in side-band packets if the client asked
+ * for them.
+ */
+class CachedPackPayload
+        implements Payload
+{
+    private final Blob pack;
+
+    private final int sideBandBufferSize;
+
+    CachedPackPayload(Blob pack, int sideBandBufferSize) {
+        this.pack = pack;
+        this.sideBandBufferSize = sideBandBufferSize;
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException {
+        return this.pack.getInputStream();
+    }
+
+    @Override
+    public long getSize() {
+        // The framing makes the response longer than the pack.
+        return -1;
+    }
+
+    @Override
+    public String getContentType() {
+        return GitRepositoryHandlers.UPLOAD_PACK_RESULT_TYPE;
+    }
+
+    @Override
+    public void copy(InputStream input, OutputStream output) throws IOException {
+        PacketLineOut pckOut = new PacketLineOut(output);
+        pckOut.writeString("NAK\n");
+
+        if (this.sideBandBufferSize == 0) {
+            ByteStreams.copy(input, output);
+            output.flush();
+            return;
+        }
+
+        SideBandOutputStream data =
+                new SideBandOutputStream(SideBandOutputStream.CH_DATA, this.sideBandBufferSize, output);
+        ByteStreams.copy(input, data);
+        data.flush();
+        pckOut.end();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.git;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+
+/*
+ * Group commit for file edits on a single branch. Callers submit an edit and block until it has been
+ * written. Whichever caller holds the writer lock drains the pending edits, gives concurrent callers
+ * a short window to join, and writes the whole batch as one tree update and commit. Callers whose
+ * edit was written by another thread simply return, so N concurrent publishes cost a handful of
+ * commits instead of N.
+ */
+class CommitQueue
+{
+    interface Writer
+    {
+        void write(List<Edit> edits) throws IOException;
+    }
+
+    interface Work<T>
+    {
+        T run() throws IOException;
+    }
+
+    static class Edit
+    {
+        final String entryPath;
+
+        final UnaryOperator<byte[]> update;
+
+        private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+        Edit(String entryPath, UnaryOperator<byte[]> update) {
+            this.entryPath = entryPath;
+            this.update = update;
+        }
+
+        /* Marks this edit as failed without affecting the rest of its batch. */
+        void fail(Throwable cause) {
+            this.done.completeExceptionally(cause);
+        }
+    }
+
+    private final LinkedBlockingQueue<Edit> pending = new LinkedBlockingQueue<Edit>();
+
+    private final ReentrantLock writerLock = new ReentrantLock();
+
+    private final int batchSize;
+
+    private final long windowMillis;
+
+    CommitQueue(int batchSize, long windowMillis) {
+        this.batchSize = Math.max(1, batchSize);
+        this.windowMillis = Math.max(0, windowMillis);
+    }
+
+    void submit(String entryPath, UnaryOperator<byte[]> update, Writer writer) throws IOException {
+        Edit edit = new Edit(entryPath, update);
+        this.pending.add(edit);
+
+        try {
+            while (!edit.done.isDone()) {
+                if (this.writerLock.tryLock()) {
+                    try {
+                        writeBatch(writer);
+                    }
+                    finally {
+                        this.writerLock.unlock();
+                    }
+                }
+                else {
+                    // Another caller is writing; it may pick up this edit too.
+                    try {
+                        edit.done.get(Math.max(this.windowMillis, 1), TimeUnit.MILLISECONDS);
+                    }
+                    catch (TimeoutException | ExecutionException e) {
+                        // Completion is checked by the loop and reported below.
+                    }
+                }
+            }
+            edit.done.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for index commit");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /*
+     * Runs work while holding the writer lock, so no batch is written on this branch until it is
+     * done. Edits submitted in the meantime wait and are written afterwards.
+     */
+    <T> T exclusively(Work<T> work) throws IOException {
+        try {
+            this.writerLock.lockInterruptibly();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for index writer lock");
+        }
+        try {
+            return work.run();
+        }
+        finally {
+            this.writerLock.unlock();
+        }
+    }
+
+    private void writeBatch(Writer writer) throws InterruptedException {
+        if (this.pending.isEmpty())
+            return;
+
+        // Give concurrent publishers a chance to join this batch.
+        if (this.pending.size() < this.batchSize && this.windowMillis > 0)
+            Thread.sleep(this.windowMillis);
+
+        List<Edit> batch = new ArrayList<Edit>(this.batchSize);
+        this.pending.drainTo(batch, this.batchSize);
+        try {
+            writer.write(batch);
+            for (Edit edit : batch)
+                edit.done.complete(null);
+        }
+        catch (Throwable e) {
+            for (Edit edit : batch)
+                edit.done.completeExceptionally(e);
+        }
+    }
+}
@@ -13,34 +13,71 @@
 
 package org.sonatype.nexus.plugins.cargo.git;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
-import org.eclipse.jgit.dircache.DirCache;
-import org.eclipse.jgit.dircache.DirCacheBuilder;
-import org.eclipse.jgit.dircache.DirCacheEditor;
-import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.RefAdvertiser;
+import org.eclipse.jgit.transport.UploadPack;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.sonatype.nexus.blobstore.api.Blob;
 import org.sonatype.nexus.email.EmailManager;
 import org.sonatype.nexus.plugins.cargo.GitRepositoryFacet;
+import org.sonatype.nexus.plugins.cargo.git.assets.AssetKindCachedPackAttributes;
 import org.sonatype.nexus.plugins.cargo.git.assets.ComponentKindGitAttributes;
+import org.sonatype.nexus.plugins.cargo.git.repo.ObjectCache;
+import org.sonatype.nexus.plugins.cargo.git.repo.PackDirectory;
 import org.sonatype.nexus.plugins.cargo.git.repo.Repository;
 import org.sonatype.nexus.repository.FacetSupport;
+import org.sonatype.nexus.repository.storage.Asset;
 import org.sonatype.nexus.repository.storage.Bucket;
 import org.sonatype.nexus.repository.storage.Component;
 import org.sonatype.nexus.repository.storage.StorageFacet;
@@ -56,20 +93,86 @@ public class GitRepositoryFacetImpl
         extends FacetSupport
         implements GitRepositoryFacet
 {
+    private static final int MAX_COMMIT_ATTEMPTS = 8;
+
     private final EmailManager emailManager;
 
     private final ComponentKindGitAttributes component_attributes;
 
     private final Repository.Builder builder;
 
+    private final int commitBatchSize;
+
+    private final long commitWindowMillis;
+
+    private final ConcurrentMap<String, CommitQueue> commitQueues = new ConcurrentHashMap<String, CommitQueue>();
+
+    private final long objectCacheBytes;
+
+    private final ConcurrentMap<String, ObjectCache> objectCaches = new ConcurrentHashMap<String, ObjectCache>();
+
+    private final long packRefreshMillis;
+
+    private final int maxObjectsPerPack;
+
+    private final long gcGraceSeconds;
+
+    private final boolean protocolV2;
+
+    private final ConcurrentMap<String, PackDirectory> packDirectories =
+            new ConcurrentHashMap<String, PackDirectory>();
+
+    private final AssetKindCachedPackAttributes pack_attributes;
+
+    private final ConcurrentMap<String, ReentrantLock> packLocks = new ConcurrentHashMap<String, ReentrantLock>();
+
+    // Rendered upload-pack ref advertisements, by git repository. Dropped
+    // whenever a ref changes; the expiry only bounds how long an entry
+    // rendered while a ref update was being committed can be served.
+    private final Cache<String, byte[]> advertisements;
+
     @Inject
     public GitRepositoryFacetImpl(EmailManager emailManager,
                                   ComponentKindGitAttributes component_attributes,
-                                  Repository.Builder builder)
+                                  AssetKindCachedPackAttributes pack_attributes,
+                                  Repository.Builder builder,
+                                  @Named("${nexus.cargo.git.commitBatchSize:-64}") int commitBatchSize,
+                                  @Named("${nexus.cargo.git.commitWindowMillis:-20}") long commitWindowMillis,
+                                  @Named("${nexus.cargo.git.objectCacheBytes:-33554432}") long objectCacheBytes,
+                                  @Named("${nexus.cargo.git.advertisementTtlSeconds:-10}") long advertisementTtlSeconds,
+                                  @Named("${nexus.cargo.git.packRefreshMillis:-10000}") long packRefreshMillis,
+                                  @Named("${nexus.cargo.git.maxObjectsPerPack:-100000}") int maxObjectsPerPack,
+                                  @Named("${nexus.cargo.git.gcGraceSeconds:-3600}") long gcGraceSeconds,
+                                  @Named("${nexus.cargo.git.protocolV2:-false}") boolean protocolV2)
     {
         this.emailManager = emailManager;
         this.component_attributes = component_attributes;
+        this.pack_attributes = pack_attributes;
         this.builder = builder;
+        this.commitBatchSize = commitBatchSize;
+        this.commitWindowMillis = commitWindowMillis;
+        this.objectCacheBytes = objectCacheBytes;
+        this.packRefreshMillis = packRefreshMillis;
+        this.maxObjectsPerPack = Math.max(1, maxObjectsPerPack);
+        this.gcGraceSeconds = gcGraceSeconds;
+        this.protocolV2 = protocolV2;
+        this.advertisements =
+                CacheBuilder.newBuilder().expireAfterWrite(advertisementTtlSeconds, TimeUnit.SECONDS).build();
+    }
+
+    @Override
+    protected void doDestroy() throws Exception {
+        for (String repo_name : this.objectCaches.keySet()) {
+            this.metrics().removeMatching(MetricFilter.startsWith(metricPrefix(repo_name)));
+        }
+        this.objectCaches.clear();
+        for (PackDirectory pack_directory : this.packDirectories.values()) {
+            pack_directory.close();
+        }
+        this.packDirectories.clear();
+        this.commitQueues.clear();
+        this.packLocks.clear();
+        this.advertisements.invalidateAll();
     }
 
     @Override
@@ -81,8 +184,7 @@ public class GitRepositoryFacetImpl
 
         StorageTx tx = UnitOfWork.currentTx();
         Bucket bucket = tx.findBucket(this.getRepository());
-        StorageFacet storage_facet = this.getRepository().facet(StorageFacet.class);
-        Repository repo = this.builder.setStorageFacet(storage_facet).setComponent(bucket, component).build();
+        Repository repo = buildGitRepository(bucket, component, repo_name);
 
         repo.create();
         return repo;
@@ -101,54 +203,240 @@ public class GitRepositoryFacetImpl
 
         StorageTx tx = UnitOfWork.currentTx();
         Bucket bucket = tx.findBucket(this.getRepository());
+        return buildGitRepository(bucket, component, repo_name);
+    }
+
+    private Repository buildGitRepository(Bucket bucket, Component component, String repo_name) throws IOException {
         StorageFacet storage_facet = this.getRepository().facet(StorageFacet.class);
-        return this.builder.setStorageFacet(storage_facet).setComponent(bucket, component).build();
+        Repository repo = this.builder.setStorageFacet(storage_facet).setComponent(bucket, component)
+                .setObjectCache(getObjectCache(repo_name))
+                .setPackDirectory(this.packDirectories.computeIfAbsent(repo_name,
+                        key -> new PackDirectory(this.packRefreshMillis)))
+                .setProtocolV2(this.protocolV2).build();
+        repo.getListenerList().addRefsChangedListener(event -> this.advertisements.invalidate(repo_name));
+        return repo;
+    }
+
+    @Override
+    public byte[] getUploadPackAdvertisement(Repository repository) throws IOException {
+        try {
+            return this.advertisements.get(repository.getIdentifier(),
+                    () -> renderUploadPackAdvertisement(repository, Collections.<String>emptyList()));
+        }
+        catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public byte[] getUploadPackAdvertisement(Repository repository, Collection<String> protocol_parameters)
+            throws IOException
+    {
+        if (!isProtocolV2(repository, protocol_parameters))
+            return getUploadPackAdvertisement(repository);
+        return renderUploadPackAdvertisement(repository, protocol_parameters);
+    }
+
+    @Override
+    public boolean isProtocolV2(Repository repository, Collection<String> protocol_parameters) {
+        return protocol_parameters.contains(GitRepositoryHandlers.PROTOCOL_V2)
+                && repository.getConfig().getInt("protocol", null, "version", 0) == 2;
+    }
+
+    @TransactionalTouchMetadata
+    protected byte[] renderUploadPackAdvertisement(Repository repository, Collection<String> protocol_parameters)
+            throws IOException
+    {
+        ByteArrayOutputStream out_bytes = new ByteArrayOutputStream();
+        final PacketLineOut packet_line_out = new PacketLineOut(out_bytes);
+
+        packet_line_out.writeString("# service=" + GitRepositoryHandlers.UPLOAD_PACK + "\n");
+        packet_line_out.end();
+
+        UploadPack service = new UploadPack(repository);
+        service.setBiDirectionalPipe(false);
+        if (!protocol_parameters.isEmpty())
+            service.setExtraParameters(protocol_parameters);
+        service.sendAdvertisedRefs(new RefAdvertiser.PacketLineOutRefAdvertiser(packet_line_out));
+        return out_bytes.toByteArray();
+    }
+
+    @Nullable
+    private ObjectCache getObjectCache(String repo_name) {
+        if (this.objectCacheBytes <= 0) {
+            return null;
+        }
+
+        return this.objectCaches.computeIfAbsent(repo_name, key -> {
+            ObjectCache cache = new ObjectCache(this.objectCacheBytes);
+            String prefix = metricPrefix(key);
+            MetricRegistry registry = metrics();
+            registry.remove(MetricRegistry.name(prefix, "hits"));
+            registry.remove(MetricRegistry.name(prefix, "misses"));
+            registry.remove(MetricRegistry.name(prefix, "evictions"));
+            registry.remove(MetricRegistry.name(prefix, "size"));
+            registry.register(MetricRegistry.name(prefix, "hits"), (Gauge<Long>) () -> cache.stats().hitCount());
+            registry.register(MetricRegistry.name(prefix, "misses"), (Gauge<Long>) () -> cache.stats().missCount());
+            registry.register(MetricRegistry.name(prefix, "evictions"),
+                    (Gauge<Long>) () -> cache.stats().evictionCount());
+            registry.register(MetricRegistry.name(prefix, "size"), (Gauge<Long>) cache::size);
+            return cache;
+        });
+    }
+
+    private String metricPrefix(String repo_name) {
+        return MetricRegistry.name(ObjectCache.class, this.getRepository().getName(), repo_name);
+    }
+
+    private MetricRegistry metrics() {
+        return SharedMetricRegistries.getOrCreate("nexus");
+    }
+
+    @Override
+    public void replaceFile(Repository repository, String branch, String entryPath, byte[] bytes) throws IOException {
+        updateFile(repository, branch, entryPath, current -> bytes);
     }
 
     @Override
+    public void updateFile(Repository repository, String branch, String entryPath, UnaryOperator<byte[]> update)
+            throws IOException
+    {
+        // Concurrent edits to the same branch are gathered into a single
+        // commit. The call returns once the commit holding this edit is
+        // durable.
+        getCommitQueue(repository, branch).submit(entryPath, update, edits -> writeEdits(repository, branch, edits));
+    }
+
+    private CommitQueue getCommitQueue(Repository repository, String branch) {
+        return this.commitQueues.computeIfAbsent(repository.getIdentifier() + ":" + branch,
+                key -> new CommitQueue(this.commitBatchSize, this.commitWindowMillis));
+    }
+
+    /*
+     * Writes a batch in a unit of work of its own so it is committed before any of the waiting
+     * callers return, independently of the transaction the submitting caller is running in. If the
+     * branch moved while the batch was being written, that transaction is rolled back and the edits
+     * are applied again on top of the new head in a fresh one.
+     */
+    private void writeEdits(Repository repository, String branch, List<CommitQueue.Edit> edits) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                inNewUnitOfWork(() -> commitEdits(repository, branch, edits));
+                // Drop anything rendered between the ref update and the commit.
+                this.advertisements.invalidate(repository.getIdentifier());
+                return;
+            }
+            catch (BranchMovedException e) {
+                forgetRolledBackObjects(repository);
+                if (attempt >= MAX_COMMIT_ATTEMPTS)
+                    throw new IOException("Gave up updating " + branch + " after " + attempt + " attempts", e);
+                log.debug("{} moved while committing, rebasing {} edits", branch, edits.size());
+            }
+        }
+    }
+
+    /*
+     * Thrown out of a transactional method when the compare-and-swap on a branch fails, so that the
+     * objects written for the lost update are rolled back with the transaction.
+     */
+    private static class BranchMovedException
+            extends IOException
+    {
+        BranchMovedException(String branch) {
+            super(branch + " moved while it was being updated");
+        }
+    }
+
+    /*
+     * Objects written by a rolled back transaction may have been read back, and cached, before the
+     * rollback.
+     */
+    private void forgetRolledBackObjects(Repository repository) {
+        ObjectCache cache = getObjectCache(repository.getIdentifier());
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    private interface Work<T>
+    {
+        T run() throws IOException;
+    }
+
+    /* Runs work in a unit of work of its own, which is committed before this returns. */
+    private <T> T inNewUnitOfWork(Work<T> work) throws IOException {
+        UnitOfWork outer = UnitOfWork.pause();
+        try {
+            UnitOfWork.begin(this.getRepository().facet(StorageFacet.class).txSupplier());
+            try {
+                return work.run();
+            }
+            finally {
+                UnitOfWork.end();
+            }
+        }
+        finally {
+            if (outer != null) {
+                UnitOfWork.resume(outer);
+            }
+        }
+    }
+
     @TransactionalTouchMetadata
     @TransactionalTouchBlob
     @TransactionalStoreMetadata
     @TransactionalStoreBlob
-    public void replaceFile(Repository repository, String branch, String entryPath, byte[] bytes) throws IOException {
-        // Calculate the ObjectId for the new contents and insert it into the object index.
-        ObjectInserter ins = repository.newObjectInserter();
-        AnyObjectId configObjId = ins.idFor(Constants.OBJ_BLOB, bytes);
-        ins.insert(Constants.OBJ_BLOB, bytes);
-        ins.flush();
-
-        // Start with a blank tree.
-        DirCache dirCache = DirCache.newInCore();
+    protected Void commitEdits(Repository repository, String branch, List<CommitQueue.Edit> edits)
+            throws IOException
+    {
         RevCommit parent = null;
 
-        // If there is a current HEAD, read that commit's tree. It will become
+        // If there is a current HEAD, edit that commit's tree. It will become
         // our parent.
         AnyObjectId headId = repository.resolve(branch + "^{commit}"); //$NON-NLS-1$
         if (headId != null) {
             try (RevWalk revWalk = new RevWalk(repository)) {
                 parent = revWalk.parseCommit(headId);
-                DirCacheBuilder builder = dirCache.builder();
-                builder.addTree(null, DirCacheEntry.STAGE_0, repository.newObjectReader(), parent.getTree());
-                builder.finish();
             }
         }
 
-        // Update entryPath in the tree to point to the new ObjectId.
-        DirCacheEditor editor = dirCache.editor();
-        editor.add(new DirCacheEditor.PathEdit(entryPath)
-        {
-            @Override
-            public void apply(DirCacheEntry ent) {
-                ent.setFileMode(FileMode.REGULAR_FILE);
-                ent.setObjectId(configObjId);
+        // Only the trees along the edited paths are read and rewritten; every
+        // other subtree of the index is reused as is.
+        ObjectInserter ins = repository.newObjectInserter();
+        AnyObjectId indexTreeId;
+        List<String> changedPaths = new ArrayList<String>();
+        try (ObjectReader reader = repository.newObjectReader()) {
+            TreeEditor editor = new TreeEditor(reader, ins, parent != null ? parent.getTree() : null);
+            for (CommitQueue.Edit edit : edits) {
+                // Edits see the result of earlier edits in the same batch.
+                ObjectId currentId = editor.getFileId(edit.entryPath);
+                byte[] current = currentId == null ? null
+                        : reader.open(currentId, Constants.OBJ_BLOB).getCachedBytes(Integer.MAX_VALUE);
+
+                byte[] bytes;
+                try {
+                    bytes = edit.update.apply(current);
+                }
+                catch (RuntimeException e) {
+                    log.warn("Failed to update {}", edit.entryPath, e);
+                    edit.fail(e);
+                    continue;
+                }
+
+                // Calculate the ObjectId for the new contents and insert it into the object index.
+                ObjectId newId = ins.insert(Constants.OBJ_BLOB, bytes);
+                if (!newId.equals(currentId)) {
+                    editor.setFile(edit.entryPath, newId);
+                    changedPaths.add(edit.entryPath);
+                }
             }
-        });
-        editor.finish();
-        AnyObjectId indexTreeId = dirCache.writeTree(ins);
 
-        // Check for empty commits
-        if (parent != null && indexTreeId.equals(parent.getTree())) {
-            return;
+            if (changedPaths.isEmpty()) {
+                return null;
+            }
+            indexTreeId = editor.writeTree();
+            ins.flush();
         }
 
         // Create a Commit object, populate it and write it
@@ -156,7 +444,12 @@ public class GitRepositoryFacetImpl
         CommitBuilder commit = new CommitBuilder();
         commit.setCommitter(adminIdent);
         commit.setAuthor(adminIdent);
-        commit.setMessage("Update " + entryPath);
+        if (changedPaths.size() == 1) {
+            commit.setMessage("Update " + changedPaths.get(0));
+        }
+        else {
+            commit.setMessage("Update " + changedPaths.size() + " files\n\n" + String.join("\n", changedPaths));
+        }
         if (parent != null) {
             commit.setParentIds(parent);
         }
@@ -175,7 +468,236 @@ public class GitRepositoryFacetImpl
                 headUpdate.setExpectedOldObjectId(headId);
             else
                 headUpdate.setExpectedOldObjectId(ObjectId.zeroId());
-            headUpdate.forceUpdate();
+
+            RefUpdate.Result result = headUpdate.update(revWalk);
+            switch (result) {
+                case NEW:
+                case FAST_FORWARD:
+                case FORCED:
+                case NO_CHANGE:
+                    return null;
+                case LOCK_FAILURE:
+                    // Another writer moved the branch since it was resolved.
+                    throw new BranchMovedException(branch);
+                default:
+                    throw new IOException("Failed to update " + branch + ": " + result.name());
+            }
+        }
+    }
+
+    @Override
+    public int collectGarbage(Repository repository) throws IOException {
+        int deleted = inNewUnitOfWork(() -> repository.getObjectDatabase()
+                .collectGarbage(TimeUnit.SECONDS.toMillis(this.gcGraceSeconds)));
+        log.info("Deleted {} unreachable objects of {}/{}", deleted, this.getRepository().getName(),
+                repository.getIdentifier());
+        return deleted;
+    }
+
+    @Override
+    public void squash(Repository repository, String branch) throws IOException {
+        // Publishes on this node wait for the squash; other nodes are caught
+        // by the compare-and-swap on the ref, and the squash is retried.
+        getCommitQueue(repository, branch).exclusively(() -> {
+            // Writers on any node freshen the objects they reuse, so pruning
+            // what was neither stored nor reused since before the squash, less
+            // the grace period for pushes in flight, keeps all they need.
+            Date prune_before = new Date(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(this.gcGraceSeconds));
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    inNewUnitOfWork(() -> squashBranch(repository, branch));
+                    break;
+                }
+                catch (BranchMovedException e) {
+                    forgetRolledBackObjects(repository);
+                    if (attempt >= MAX_COMMIT_ATTEMPTS)
+                        throw new IOException("Gave up squashing " + branch + " after " + attempt + " attempts", e);
+                    log.debug("{} moved while squashing, retrying", branch);
+                }
+            }
+            this.advertisements.invalidate(repository.getIdentifier());
+
+            int packed = inNewUnitOfWork(() -> repository.getObjectDatabase().packReachableObjects(prune_before));
+            log.info("Squashed {} of {}/{} into {} objects", branch, this.getRepository().getName(),
+                    repository.getIdentifier(), packed);
+            return null;
+        });
+    }
+
+    /*
+     * Points branch at a new root commit with the tree of its current head. Throws
+     * BranchMovedException, rolling the new commit back, if the branch moved while it was being
+     * written.
+     */
+    @TransactionalTouchMetadata
+    @TransactionalStoreMetadata
+    @TransactionalStoreBlob
+    protected Void squashBranch(Repository repository, String branch) throws IOException {
+        AnyObjectId headId = repository.resolve(branch + "^{commit}"); //$NON-NLS-1$
+        if (headId == null) {
+            return null;
+        }
+
+        try (RevWalk revWalk = new RevWalk(repository)) {
+            RevCommit head = revWalk.parseCommit(headId);
+            if (head.getParentCount() == 0) {
+                return null;
+            }
+
+            PersonIdent adminIdent =
+                    new PersonIdent("Nexus System", this.emailManager.getConfiguration().getFromAddress());
+            CommitBuilder commit = new CommitBuilder();
+            commit.setCommitter(adminIdent);
+            commit.setAuthor(adminIdent);
+            commit.setMessage("Collapse index into one commit\n\nPrevious HEAD was " + head.name() + ".");
+            commit.setTreeId(head.getTree());
+
+            AnyObjectId commitId;
+            try (ObjectInserter ins = repository.newObjectInserter()) {
+                commitId = ins.insert(commit);
+                ins.flush();
+            }
+
+            RefUpdate headUpdate = repository.updateRef(branch);
+            headUpdate.setNewObjectId(commitId);
+            headUpdate.setExpectedOldObjectId(headId);
+            headUpdate.setForceUpdate(true);
+            headUpdate.setRefLogMessage("squash: " + commit.getMessage(), false);
+
+            RefUpdate.Result result = headUpdate.update(revWalk);
+            switch (result) {
+                case FORCED:
+                case NO_CHANGE:
+                    return null;
+                case LOCK_FAILURE:
+                    throw new BranchMovedException(branch);
+                default:
+                    throw new IOException("Failed to squash " + branch + ": " + result.name());
+            }
+        }
+    }
+
+    @Override
+    @Nullable
+    @TransactionalTouchMetadata
+    @TransactionalTouchBlob
+    public byte[] readFile(Repository repository, String branch, String entryPath) throws IOException {
+        AnyObjectId headId = repository.resolve(branch + "^{commit}"); //$NON-NLS-1$
+        if (headId == null) {
+            return null;
+        }
+
+        try (RevWalk revWalk = new RevWalk(repository)) {
+            RevCommit head = revWalk.parseCommit(headId);
+            try (TreeWalk treeWalk = TreeWalk.forPath(repository, entryPath, head.getTree())) {
+                // Only regular files can be served; directories along the
+                // path are reported as missing.
+                if (treeWalk == null || (treeWalk.getRawMode(0) & FileMode.TYPE_MASK) != FileMode.TYPE_FILE) {
+                    return null;
+                }
+                return repository.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB).getCachedBytes(Integer.MAX_VALUE);
+            }
+        }
+    }
+
+    @Override
+    public int repack(Repository repository) throws IOException {
+        // Each pack is committed in a unit of work of its own, and the
+        // objects it replaces are only deleted after that. Whatever the
+        // pack of reachable objects left loose is packed as well.
+        int total = inNewUnitOfWork(() -> repository.getObjectDatabase().packReachableObjects(null));
+        for (;;) {
+            int packed = inNewUnitOfWork(
+                    () -> repository.getObjectDatabase().packLooseObjects(this.maxObjectsPerPack));
+            total += packed;
+            if (packed < this.maxObjectsPerPack)
+                break;
+        }
+        log.info("Packed {} objects of {}/{}", total, this.getRepository().getName(),
+                repository.getIdentifier());
+        return total;
+    }
+
+    @Override
+    @Nullable
+    public Blob getFullPack(Repository repository, Set<ObjectId> wants) throws IOException {
+        Blob pack = inNewUnitOfWork(() -> findFullPack(repository, wants));
+        if (pack != null) {
+            return pack;
+        }
+
+        // Only one clone builds the pack; the others wait and then use it.
+        ReentrantLock lock = this.packLocks.computeIfAbsent(repository.getIdentifier(), key -> new ReentrantLock());
+        lock.lock();
+        try {
+            pack = inNewUnitOfWork(() -> findFullPack(repository, wants));
+            if (pack == null && inNewUnitOfWork(() -> storeFullPack(repository, wants))) {
+                pack = inNewUnitOfWork(() -> findFullPack(repository, wants));
+            }
+            return pack;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    @TransactionalTouchMetadata
+    @TransactionalTouchBlob
+    protected Blob findFullPack(Repository repository, Set<ObjectId> wants) throws IOException {
+        Component component = this.component_attributes.findGitComponent(this.getRepository(),
+                repository.getIdentifier());
+        Asset asset = component == null ? null : this.pack_attributes.findCachedPackAsset(component);
+        if (asset == null || !this.pack_attributes.getTips(asset).containsAll(wants)) {
+            return null;
+        }
+        return this.pack_attributes.getBlob(asset);
+    }
+
+    /*
+     * Builds a pack of everything reachable from the current refs and stores it. Returns false
+     * without building anything if wants are not all current ref values.
+     */
+    @TransactionalStoreMetadata
+    @TransactionalStoreBlob
+    protected boolean storeFullPack(Repository repository, Set<ObjectId> wants) throws IOException {
+        // Symbolic refs such as HEAD report the value of the ref they point to.
+        Set<ObjectId> tips = new HashSet<ObjectId>();
+        for (Ref ref : repository.getRefDatabase().getRefsByPrefix(RefDatabase.ALL)) {
+            if (ref.getObjectId() != null)
+                tips.add(ref.getObjectId().copy());
+        }
+        if (tips.isEmpty() || !tips.containsAll(wants)) {
+            return false;
+        }
+
+        StorageTx tx = UnitOfWork.currentTx();
+        Bucket bucket = tx.findBucket(this.getRepository());
+        Component component = this.component_attributes.findGitComponent(this.getRepository(),
+                repository.getIdentifier());
+
+        Path packFile = Files.createTempFile("cargo-cached-pack", ".pack");
+        try {
+            long started = System.currentTimeMillis();
+            try (ObjectReader reader = repository.newObjectReader();
+                 PackWriter writer = new PackWriter(new PackConfig(repository), reader);
+                 OutputStream out = Files.newOutputStream(packFile)) {
+                writer.setDeltaBaseAsOffset(true);
+                writer.setThin(false);
+                writer.setUseCachedPacks(false);
+                writer.preparePack(NullProgressMonitor.INSTANCE, tips, Collections.<ObjectId>emptySet());
+                writer.writePack(NullProgressMonitor.INSTANCE, NullProgressMonitor.INSTANCE, out);
+                log.debug("Built full pack of {} objects for {} in {}ms", writer.getObjectCount(),
+                        repository.getIdentifier(), System.currentTimeMillis() - started);
+            }
+
+            try (InputStream in = Files.newInputStream(packFile)) {
+                this.pack_attributes.setCachedPack(bucket, component, tips, in);
+            }
+        }
+        finally {
+            Files.deleteIfExists(packFile);
         }
+        return true;
     }
 }
@@ -13,31 +13,44 @@
 
 package org.sonatype.nexus.plugins.cargo.git;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
 import org.apache.http.HttpHeaders;
 import org.eclipse.jgit.lib.PersonIdent;
-import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.PacketLineOut;
 import org.eclipse.jgit.transport.ReceivePack;
 import org.eclipse.jgit.transport.RefAdvertiser;
 import org.eclipse.jgit.transport.UploadPack;
 import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.api.Blob;
 import org.sonatype.nexus.plugins.cargo.GitRepositoryFacet;
+import org.sonatype.nexus.plugins.cargo.git.repo.Repository;
 import org.sonatype.nexus.repository.http.HttpMethods;
 import org.sonatype.nexus.repository.http.HttpResponses;
+import org.sonatype.nexus.repository.storage.StorageFacet;
 import org.sonatype.nexus.repository.transaction.TransactionalStoreBlob;
 import org.sonatype.nexus.repository.transaction.TransactionalStoreMetadata;
 import org.sonatype.nexus.repository.transaction.TransactionalTouchBlob;
 import org.sonatype.nexus.repository.transaction.TransactionalTouchMetadata;
+import org.sonatype.nexus.repository.view.Content;
 import org.sonatype.nexus.repository.view.Context;
 import org.sonatype.nexus.repository.view.Handler;
 import org.sonatype.nexus.repository.view.Payload;
 import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.repository.view.Status;
 import org.sonatype.nexus.repository.view.matchers.ActionMatcher;
 import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher;
 import org.sonatype.nexus.repository.view.payloads.BytesPayload;
@@ -70,6 +83,14 @@ public class GitRepositoryHandlers
     /** Content type returned from the /git-receive-pack handler. */
     public static final String RECEIVE_PACK_RESULT_TYPE = "application/x-git-receive-pack-result";
 
+    /** Header carrying the protocol version and other parameters the client asks for. */
+    public static final String GIT_PROTOCOL_HEADER = "Git-Protocol";
+
+    /** Git-Protocol parameter of clients asking for protocol v2. */
+    public static final String PROTOCOL_V2 = "version=2";
+
+    private final static int TOO_MANY_REQUESTS = 429;
+
     private final static String[] GET_REQUEST_METHODS = {HttpMethods.GET, HttpMethods.HEAD};
 
     private final static String[] PUT_REQUEST_METHODS = {HttpMethods.POST};
@@ -86,12 +107,26 @@ public class GitRepositoryHandlers
             return facet.getGitRepository(repo_name);
         }
 
+        /* Parameters of the Git-Protocol header, which are separated by colons. */
+        protected static List<String> getProtocolParameters(Context context) {
+            String header = context.getRequest().getHeaders().get(GIT_PROTOCOL_HEADER);
+            if (header == null || header.isEmpty())
+                return Collections.emptyList();
+            return Arrays.asList(header.split(":"));
+        }
+
         protected static Response setUncachedResponse(Response response) {
             return new Response.Builder().copy(response).header(HttpHeaders.EXPIRES, "Fri, 01 Jan 1980 00:00:00 GMT")
                     .header(HttpHeaders.PRAGMA, "no-cache")
                     .header(HttpHeaders.CACHE_CONTROL, "no-cache, max-age=0, must-revalidate").build();
         }
 
+        protected static Response buildTooManyRequestsResponse(long retry_after_seconds) {
+            return setUncachedResponse(new Response.Builder()
+                    .status(Status.failure(TOO_MANY_REQUESTS, "Too many git operations in progress"))
+                    .header(HttpHeaders.RETRY_AFTER, Long.toString(retry_after_seconds)).build());
+        }
+
         protected static Response buildBadRequestResponse(String[] allowed_methods) {
             return setUncachedResponse(new Response.Builder().copy(HttpResponses.badRequest())
                     .header(HttpHeaders.ALLOW, String.join(", ", allowed_methods)).build());
@@ -135,22 +170,18 @@ public class GitRepositoryHandlers
 
         @TransactionalTouchMetadata
         public Response handleSmartUploadPackService(Context context) throws Exception {
-            ByteArrayOutputStream out_bytes = new ByteArrayOutputStream();
-            final PacketLineOut packet_line_out = new PacketLineOut(out_bytes);
-
-            packet_line_out.writeString("# service=" + UPLOAD_PACK + "\n");
-            packet_line_out.end();
-
             Repository gitRepo = getGitRepository(context);
             if (gitRepo == null)
                 return HttpResponses.notFound("unknown repository");
 
-            UploadPack service = new UploadPack(gitRepo);
-            service.setBiDirectionalPipe(false);
-            service.sendAdvertisedRefs(new RefAdvertiser.PacketLineOutRefAdvertiser(packet_line_out));
+            // Refs only change on publish, so the advertisement is served from
+            // memory. The ETag lets pollers revalidate without a body.
+            GitRepositoryFacet facet = context.getRepository().facet(GitRepositoryFacet.class);
+            byte[] advertisement = facet.getUploadPackAdvertisement(gitRepo, getProtocolParameters(context));
 
-            Payload payload = new BytesPayload(out_bytes.toByteArray(), UPLOAD_PACK_ADVERTISEMENT_TYPE);
-            return HttpResponses.ok(payload);
+            Content content = new Content(new BytesPayload(advertisement, UPLOAD_PACK_ADVERTISEMENT_TYPE));
+            content.getAttributes().set(Content.CONTENT_ETAG, Hashing.sha1().hashBytes(advertisement).toString());
+            return HttpResponses.ok(content);
         }
 
         @TransactionalTouchMetadata
@@ -179,9 +210,17 @@ public class GitRepositoryHandlers
     public static class UploadPackService
             extends GitHandlerSupport
     {
+        private final UploadPackFlights flights;
+
+        private final PackOperationLimiter limiter;
+
+        @Inject
+        public UploadPackService(UploadPackFlights flights, PackOperationLimiter limiter) {
+            this.flights = flights;
+            this.limiter = limiter;
+        }
+
         @Override
-        @TransactionalTouchMetadata
-        @TransactionalTouchBlob
         public Response handle(Context context) throws Exception {
             if (!new ActionMatcher(PUT_REQUEST_METHODS).matches(context)) {
                 this.createLogger().debug("Wrong upload-pack action: {}", context.getRequest());
@@ -194,18 +233,134 @@ public class GitRepositoryHandlers
                 return HttpResponses.badRequest();
             }
 
+            // The negotiation is small; buffer it so it can be inspected before
+            // handing it to UploadPack.
+            byte[] request;
+            try (InputStream in = context.getRequest().getPayload().openInputStream()) {
+                request = ByteStreams.toByteArray(in);
+            }
+
+            // Listing the refs is cheap, and its answer changes with every
+            // publish, so it is neither limited nor shared.
+            List<String> protocol_parameters = getProtocolParameters(context);
+            UploadPackRequest negotiation = UploadPackRequest.parse(request);
+            if (negotiation.isListRefs())
+                return listRefs(context, request, protocol_parameters);
+
+            // The wants and haves decide what is sent, so identical concurrent
+            // fetches share one run of UploadPack. A request joining a run in
+            // progress only copies its output; it needs neither a slot nor a
+            // transaction, only one of the cheaper follower places.
+            String key = getFlightKey(context, request, protocol_parameters);
+            UploadPackFlights.Follower follower = this.flights.join(key);
+            if (follower != null)
+                return follow(follower);
+
+            // Wait for a slot before opening a transaction. The pack is written
+            // after this returns, so the slot is held until the response is.
+            PackOperationLimiter.Permit permit = this.limiter.acquire();
+            if (permit == null)
+                return buildTooManyRequestsResponse(this.limiter.getRetryAfterSeconds());
+
+            Response response;
+            try {
+                response = uploadPack(context, request, negotiation, protocol_parameters, key);
+            }
+            catch (Exception | Error e) {
+                permit.release();
+                throw e;
+            }
+            Payload payload = response.getPayload();
+            if (payload == null) {
+                permit.release();
+                return response;
+            }
+
+            // The run is registered by uploadPack(), so identical requests
+            // handled from then on join it. One registered while this request
+            // waited for its slot is joined here, giving the slot back.
+            if (payload instanceof UploadPackFlights.Follower) {
+                permit.release();
+                return follow((UploadPackFlights.Follower) payload);
+            }
+            if (payload instanceof UploadPackFlights.Leader) {
+                UploadPackFlights.Leader leader = (UploadPackFlights.Leader) payload;
+                payload = this.limiter.releaseWhenWritten(leader, () -> {
+                    leader.abandon();
+                    permit.release();
+                });
+            }
+            else {
+                payload = permit.holdUntilWritten(payload);
+            }
+            return new Response.Builder().copy(response).payload(payload).build();
+        }
+
+        private Response follow(UploadPackFlights.Follower follower) {
+            PackOperationLimiter.Permit place = this.limiter.acquireFollower();
+            if (place == null) {
+                follower.abandon();
+                return buildTooManyRequestsResponse(this.limiter.getRetryAfterSeconds());
+            }
+            return HttpResponses.ok(this.limiter.releaseWhenWritten(follower, () -> {
+                follower.abandon();
+                place.release();
+            }));
+        }
+
+        private static String getFlightKey(Context context, byte[] request, List<String> protocol_parameters) {
+            TokenMatcher.State state = context.getAttributes().require(TokenMatcher.State.class);
+            return context.getRepository().getName() + "/" + state.getTokens().get("repo_name") + "/"
+                    + Hashing.sha256().newHasher().putBytes(request)
+                            .putString(String.join(":", protocol_parameters), StandardCharsets.UTF_8).hash();
+        }
+
+        /* Answers a protocol v2 ls-refs request, which only reads the refs. */
+        @TransactionalTouchMetadata
+        protected Response listRefs(Context context, byte[] request, List<String> protocol_parameters)
+                throws Exception
+        {
             Repository gitRepo = getGitRepository(context);
             if (gitRepo == null)
                 return HttpResponses.notFound("unknown repository");
 
             UploadPack service = new UploadPack(gitRepo);
             service.setBiDirectionalPipe(false);
+            if (!protocol_parameters.isEmpty())
+                service.setExtraParameters(protocol_parameters);
+            ByteArrayOutputStream out_bytes = new ByteArrayOutputStream();
+            service.upload(new ByteArrayInputStream(request), out_bytes, null);
+            return HttpResponses.ok(new BytesPayload(out_bytes.toByteArray(), UPLOAD_PACK_RESULT_TYPE));
+        }
 
-            ByteArrayOutputStream outputBytes = new ByteArrayOutputStream();
-            service.upload(context.getRequest().getPayload().openInputStream(), outputBytes, null);
+        @TransactionalTouchMetadata
+        @TransactionalTouchBlob
+        protected Response uploadPack(Context context,
+                                      byte[] request,
+                                      UploadPackRequest negotiation,
+                                      List<String> protocol_parameters,
+                                      String key) throws Exception
+        {
+            Repository gitRepo = getGitRepository(context);
+            if (gitRepo == null)
+                return HttpResponses.notFound("unknown repository");
 
-            Payload payload = new BytesPayload(outputBytes.toByteArray(), UPLOAD_PACK_RESULT_TYPE);
-            return HttpResponses.ok(payload);
+            // A full clone is answered with the cached pack of everything
+            // reachable from the refs instead of enumerating and packing the
+            // objects again for every client. Shallow requests (deepen,
+            // deepen-since, deepen-not) and requests served with protocol v2
+            // always go to UploadPack, which works out the shallow boundary.
+            GitRepositoryFacet facet = context.getRepository().facet(GitRepositoryFacet.class);
+            if (!facet.isProtocolV2(gitRepo, protocol_parameters) && negotiation.isFullClone()) {
+                Blob pack = facet.getFullPack(gitRepo, negotiation.getWants());
+                if (pack != null) {
+                    return HttpResponses.ok(new CachedPackPayload(pack, negotiation.getSideBandBufferSize()));
+                }
+            }
+
+            StorageFacet storage_facet = context.getRepository().facet(StorageFacet.class);
+            return HttpResponses.ok(this.flights.share(key,
+                    new UploadPackPayload(gitRepo, storage_facet, request, protocol_parameters)));
         }
     };
 
@@ -215,14 +370,15 @@ public class GitRepositoryHandlers
     {
         private final SecuritySystem securitySytem;
 
+        private final PackOperationLimiter limiter;
+
         @Inject
-        public ReceivePackService(SecuritySystem securitySystem) {
+        public ReceivePackService(SecuritySystem securitySystem, PackOperationLimiter limiter) {
             this.securitySytem = securitySystem;
+            this.limiter = limiter;
         }
 
         @Override
-        @TransactionalStoreBlob
-        @TransactionalStoreMetadata
         public Response handle(Context context) throws Exception {
             if (!new ActionMatcher(PUT_REQUEST_METHODS).matches(context)) {
                 this.createLogger().debug("Wrong receive-pack action: {}", context.getRequest());
@@ -235,6 +391,20 @@ public class GitRepositoryHandlers
                 return HttpResponses.badRequest();
             }
 
+            PackOperationLimiter.Permit permit = this.limiter.acquire();
+            if (permit == null)
+                return buildTooManyRequestsResponse(this.limiter.getRetryAfterSeconds());
+            try {
+                return receivePack(context);
+            }
+            finally {
+                permit.release();
+            }
+        }
+
+        @TransactionalStoreBlob
+        @TransactionalStoreMetadata
+        protected Response receivePack(Context context) throws Exception {
             Repository gitRepo = getGitRepository(context);
             if (gitRepo == null)
                 return HttpResponses.notFound("unknown repository");
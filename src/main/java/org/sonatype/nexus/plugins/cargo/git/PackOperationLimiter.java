@@ -0,0 +1,250 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.git;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.sonatype.nexus.repository.view.Payload;
+
+/*
+ * Admission control for git pack operations. At most a fixed number of upload-packs and
+ * receive-packs run at once, and a bounded number of further requests wait for a slot for a
+ * limited time. Anything beyond that is turned away, so a burst of clones cannot occupy every
+ * request thread and starve cheap downloads. Requests are still served on the request thread;
+ * the limit bounds how many of those threads git can hold, running or waiting. A slot held for a
+ * response is given back if the response has not started to be written within a timeout, so a
+ * response that is dropped before it is sent cannot keep it forever. Requests that only copy the
+ * output of an identical operation already running take no slot, but a place among a separate,
+ * larger number of followers, since each of them still holds a request thread while it copies.
+ */
+@Named
+@Singleton
+public class PackOperationLimiter
+{
+    /* A slot or follower place held by one request. Releasing it more than once has no effect. */
+    public class Permit
+    {
+        private final Semaphore semaphore;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        public void release() {
+            if (this.released.compareAndSet(false, true))
+                this.semaphore.release();
+        }
+
+        /*
+         * Wraps a payload whose copy() does the actual work, so the slot is held until the response
+         * has been written.
+         */
+        public Payload holdUntilWritten(Payload payload) {
+            return releaseWhenWritten(payload, this::release);
+        }
+    }
+
+    private final Semaphore slots;
+
+    private final Semaphore followers;
+
+    private final int maxQueued;
+
+    private final long queueTimeoutMillis;
+
+    private final long retryAfterSeconds;
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final Timer waitTime;
+
+    private final Meter rejected;
+
+    private final long unwrittenTimeoutMillis;
+
+    private final ScheduledThreadPoolExecutor backstops;
+
+    private final Meter abandoned;
+
+    @Inject
+    public PackOperationLimiter(@Named("${nexus.cargo.git.maxPackOperations:-16}") int maxRunning,
+                                @Named("${nexus.cargo.git.maxQueuedPackOperations:-64}") int maxQueued,
+                                @Named("${nexus.cargo.git.packQueueTimeoutMillis:-30000}") long queueTimeoutMillis,
+                                @Named("${nexus.cargo.git.packRetryAfterSeconds:-10}") long retryAfterSeconds,
+                                @Named("${nexus.cargo.git.packUnwrittenTimeoutSeconds:-60}")
+                                long unwrittenTimeoutSeconds,
+                                @Named("${nexus.cargo.git.maxPackFollowers:-256}") int maxFollowers)
+    {
+        int permits = Math.max(1, maxRunning);
+        this.slots = new Semaphore(permits, true);
+        int places = Math.max(0, maxFollowers);
+        this.followers = new Semaphore(places);
+        this.maxQueued = Math.max(0, maxQueued);
+        this.queueTimeoutMillis = Math.max(0, queueTimeoutMillis);
+        this.retryAfterSeconds = Math.max(1, retryAfterSeconds);
+        this.unwrittenTimeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(1, unwrittenTimeoutSeconds));
+
+        this.backstops = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cargo-pack-backstop-%d").build());
+        this.backstops.setRemoveOnCancelPolicy(true);
+
+        MetricRegistry registry = SharedMetricRegistries.getOrCreate("nexus");
+        String prefix = MetricRegistry.name(PackOperationLimiter.class);
+        registry.remove(MetricRegistry.name(prefix, "running"));
+        registry.remove(MetricRegistry.name(prefix, "queued"));
+        registry.remove(MetricRegistry.name(prefix, "following"));
+        registry.register(MetricRegistry.name(prefix, "running"),
+                (Gauge<Integer>) () -> permits - this.slots.availablePermits());
+        registry.register(MetricRegistry.name(prefix, "queued"), (Gauge<Integer>) this.queued::get);
+        registry.register(MetricRegistry.name(prefix, "following"),
+                (Gauge<Integer>) () -> places - this.followers.availablePermits());
+        this.waitTime = registry.timer(MetricRegistry.name(prefix, "wait"));
+        this.rejected = registry.meter(MetricRegistry.name(prefix, "rejected"));
+        this.abandoned = registry.meter(MetricRegistry.name(prefix, "abandoned"));
+    }
+
+    /*
+     * Waits for a slot and returns it, or returns null if the wait queue is full or the wait timed
+     * out. The caller should then answer with 429 and getRetryAfterSeconds().
+     */
+    @Nullable
+    public Permit acquire() throws IOException {
+        if (this.slots.tryAcquire())
+            return new Permit(this.slots);
+
+        if (this.queued.incrementAndGet() > this.maxQueued) {
+            this.queued.decrementAndGet();
+            this.rejected.mark();
+            return null;
+        }
+
+        Timer.Context waiting = this.waitTime.time();
+        try {
+            if (this.slots.tryAcquire(this.queueTimeoutMillis, TimeUnit.MILLISECONDS))
+                return new Permit(this.slots);
+            this.rejected.mark();
+            return null;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a git pack slot");
+        }
+        finally {
+            waiting.stop();
+            this.queued.decrementAndGet();
+        }
+    }
+
+    /*
+     * Returns a place for a request that copies the output of a running operation, or null if
+     * all places are taken. Followers do not wait; the caller should answer with 429 at once.
+     */
+    @Nullable
+    public Permit acquireFollower() {
+        if (this.followers.tryAcquire())
+            return new Permit(this.followers);
+        this.rejected.mark();
+        return null;
+    }
+
+    public long getRetryAfterSeconds() {
+        return this.retryAfterSeconds;
+    }
+
+    /*
+     * Wraps a payload so that release runs once the response has been written, or once the
+     * servlet closes the payload's input in case copy() is never reached. If neither has started
+     * within the timeout, the response is taken to be dropped and release runs then. It may run
+     * more than once, so it has to be idempotent.
+     */
+    public Payload releaseWhenWritten(Payload payload, Runnable release) {
+        AtomicBoolean started = new AtomicBoolean();
+        ScheduledFuture<?> backstop = this.backstops.schedule(() -> {
+            if (started.compareAndSet(false, true)) {
+                this.abandoned.mark();
+                release.run();
+            }
+        }, this.unwrittenTimeoutMillis, TimeUnit.MILLISECONDS);
+
+        return new Payload()
+        {
+            @Override
+            public InputStream openInputStream() throws IOException {
+                start();
+                return new FilterInputStream(payload.openInputStream())
+                {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        }
+                        finally {
+                            release.run();
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public long getSize() {
+                return payload.getSize();
+            }
+
+            @Override
+            public String getContentType() {
+                return payload.getContentType();
+            }
+
+            @Override
+            public void copy(InputStream input, OutputStream output) throws IOException {
+                start();
+                try {
+                    payload.copy(input, output);
+                }
+                finally {
+                    release.run();
+                }
+            }
+
+            private void start() {
+                started.set(true);
+                backstop.cancel(false);
+            }
+        };
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.git;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+
+/*
+ * Edits files in a git tree without loading the whole tree. Only the trees along an edited path are
+ * read and, when the edits are written, only those trees are rewritten. Every other subtree keeps
+ * its existing ObjectId, so the cost of an edit grows with the depth of the path rather than with
+ * the number of files in the tree.
+ */
+class TreeEditor
+{
+    private static class Entry
+    {
+        final String name;
+
+        FileMode mode;
+
+        ObjectId id;
+
+        // Loaded contents of a subtree which is on an edited path.
+        Tree tree;
+
+        Entry(String name, FileMode mode, ObjectId id) {
+            this.name = name;
+            this.mode = mode;
+            this.id = id;
+        }
+
+        boolean isTree() {
+            return this.mode == FileMode.TREE;
+        }
+    }
+
+    private static class Tree
+    {
+        final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+        boolean modified;
+    }
+
+    /* Git orders tree entries by name bytes, with subtrees compared as if they ended in '/'. */
+    private static final Comparator<Entry> GIT_TREE_ORDER = (a, b) -> {
+        byte[] aName = a.name.getBytes(StandardCharsets.UTF_8);
+        byte[] bName = b.name.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(aName.length, bName.length);
+        for (int i = 0; i < length; i++) {
+            int cmp = (aName[i] & 0xff) - (bName[i] & 0xff);
+            if (cmp != 0)
+                return cmp;
+        }
+        int aLast = aName.length > length ? aName[length] & 0xff : (a.isTree() ? '/' : 0);
+        int bLast = bName.length > length ? bName[length] & 0xff : (b.isTree() ? '/' : 0);
+        return aLast - bLast;
+    };
+
+    private final ObjectReader reader;
+
+    private final ObjectInserter inserter;
+
+    private final Tree root;
+
+    TreeEditor(ObjectReader reader, ObjectInserter inserter, @Nullable AnyObjectId treeId) throws IOException {
+        this.reader = reader;
+        this.inserter = inserter;
+        this.root = treeId == null ? new Tree() : readTree(treeId);
+        if (treeId == null)
+            this.root.modified = true;
+    }
+
+    /*
+     * Returns the ObjectId of the file at path, taking edits made through this editor into account,
+     * or null if there is no such file.
+     */
+    @Nullable
+    ObjectId getFileId(String path) throws IOException {
+        String[] names = path.split("/");
+        Tree tree = this.root;
+        for (int i = 0; i < names.length - 1; i++) {
+            Entry entry = tree.entries.get(names[i]);
+            if (entry == null || !entry.isTree())
+                return null;
+            tree = loadSubtree(entry);
+        }
+
+        Entry entry = tree.entries.get(names[names.length - 1]);
+        if (entry == null || entry.isTree())
+            return null;
+        return entry.id;
+    }
+
+    /* Points the regular file at path to the given blob, creating missing trees along the way. */
+    void setFile(String path, ObjectId blobId) throws IOException {
+        String[] names = path.split("/");
+        Tree tree = this.root;
+        tree.modified = true;
+        for (int i = 0; i < names.length - 1; i++) {
+            Entry entry = tree.entries.get(names[i]);
+            if (entry == null || !entry.isTree()) {
+                entry = new Entry(names[i], FileMode.TREE, null);
+                entry.tree = new Tree();
+                tree.entries.put(names[i], entry);
+            }
+            tree = loadSubtree(entry);
+            tree.modified = true;
+        }
+
+        String name = names[names.length - 1];
+        Entry entry = new Entry(name, FileMode.REGULAR_FILE, blobId);
+        tree.entries.put(name, entry);
+    }
+
+    /* Writes every modified tree and returns the ObjectId of the new root tree. */
+    ObjectId writeTree() throws IOException {
+        return writeTree(this.root);
+    }
+
+    private ObjectId writeTree(Tree tree) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>(tree.entries.values());
+        entries.sort(GIT_TREE_ORDER);
+
+        TreeFormatter formatter = new TreeFormatter();
+        for (Entry entry : entries) {
+            if (entry.tree != null && entry.tree.modified) {
+                entry.id = writeTree(entry.tree);
+                entry.tree.modified = false;
+            }
+            formatter.append(entry.name, entry.mode, entry.id);
+        }
+        return this.inserter.insert(formatter);
+    }
+
+    private Tree loadSubtree(Entry entry) throws IOException {
+        if (entry.tree == null)
+            entry.tree = readTree(entry.id);
+        return entry.tree;
+    }
+
+    private Tree readTree(AnyObjectId treeId) throws IOException {
+        Tree tree = new Tree();
+        for (CanonicalTreeParser parser = new CanonicalTreeParser(null, this.reader, treeId); !parser.eof();
+                parser.next()) {
+            Entry entry = new Entry(parser.getEntryPathString(), parser.getEntryFileMode(),
+                    parser.getEntryObjectId());
+            tree.entries.put(entry.name, entry);
+        }
+        return tree;
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.git;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.sonatype.nexus.repository.view.Payload;
+
+/*
+ * Single-flight execution of upload-pack. Requests with the same key, meaning the same negotiation
+ * against the same refs, get the same response. The first of them runs UploadPack on a thread of
+ * its own, writing only to a local spool file, and every request, the first one included, tails
+ * the spool file to its client. A slow client therefore only slows its own response, never
+ * UploadPack or the other clients. The file is deleted when the last of them is done with it. A
+ * flight is registered by share() while the first request is handled, not when its response is
+ * written, and a request can join it as soon as it is handled, see join(), so that it does not
+ * have to wait for a slot of its own to copy the output of one that already holds a slot.
+ */
+@Named
+@Singleton
+public class UploadPackFlights
+{
+    private static class Flight
+    {
+        private Path file;
+
+        private long written;
+
+        private boolean done;
+
+        private Throwable failure;
+
+        // The leader and all followers still reading the spool file.
+        private int participants = 1;
+
+        synchronized boolean join() {
+            if (this.participants == 0)
+                return false;
+            this.participants++;
+            return true;
+        }
+
+        void leave() {
+            Path file;
+            synchronized (this) {
+                if (--this.participants > 0)
+                    return;
+                file = this.file;
+            }
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                }
+                catch (IOException e) {
+                    file.toFile().deleteOnExit();
+                }
+            }
+        }
+
+        synchronized void start(Path file) {
+            this.file = file;
+        }
+
+        synchronized void progress(long written) {
+            this.written = written;
+            notifyAll();
+        }
+
+        synchronized void finish(Throwable failure) {
+            this.done = true;
+            this.failure = failure;
+            notifyAll();
+        }
+
+        /* Copies the spool file to output as the leader writes it, until the leader is done. */
+        void follow(OutputStream output) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            FileChannel channel = null;
+            long position = 0;
+            try {
+                while (true) {
+                    long available;
+                    boolean finished;
+                    synchronized (this) {
+                        while (!this.done && this.written <= position)
+                            wait();
+                        if (this.failure != null)
+                            throw new IOException("Shared upload-pack failed", this.failure);
+                        available = this.written;
+                        finished = this.done;
+                        if (channel == null && this.file != null)
+                            channel = FileChannel.open(this.file, StandardOpenOption.READ);
+                    }
+
+                    while (position < available) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(buffer.capacity(), available - position));
+                        int read = channel.read(buffer, position);
+                        output.write(buffer.array(), 0, read);
+                        position += read;
+                    }
+                    output.flush();
+                    if (finished)
+                        return;
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for shared upload-pack");
+            }
+            finally {
+                if (channel != null)
+                    channel.close();
+            }
+        }
+    }
+
+    /* Writes to the spool file, telling the flight's readers how much there is to read. */
+    private static class SpoolOutputStream
+            extends OutputStream
+    {
+        private final Flight flight;
+
+        private final OutputStream spool;
+
+        private long written;
+
+        SpoolOutputStream(Flight flight, OutputStream spool) {
+            this.flight = flight;
+            this.spool = spool;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.spool.write(b, off, len);
+            this.written += len;
+            this.flight.progress(this.written);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.spool.close();
+        }
+    }
+
+    /*
+     * The response of the request that registered a flight, which runs UploadPack when it is
+     * written. If it is dropped instead, abandon() fails the flight for the requests that joined.
+     */
+    class Leader
+            implements Payload
+    {
+        private final String key;
+
+        private final UploadPackPayload upload;
+
+        private final Flight flight;
+
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private Leader(String key, UploadPackPayload upload, Flight flight) {
+            this.key = key;
+            this.upload = upload;
+            this.flight = flight;
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            return this.upload.openInputStream();
+        }
+
+        @Override
+        public long getSize() {
+            return -1;
+        }
+
+        @Override
+        public String getContentType() {
+            return this.upload.getContentType();
+        }
+
+        @Override
+        public void copy(InputStream input, OutputStream output) throws IOException {
+            if (!this.claimed.compareAndSet(false, true))
+                throw new IOException("Shared upload-pack was abandoned before it was sent");
+            lead(this.flight, input, output);
+        }
+
+        void abandon() {
+            if (this.claimed.compareAndSet(false, true)) {
+                this.flight.finish(new IOException("Shared upload-pack was abandoned before it was sent"));
+                flights.remove(this.key, this.flight);
+                this.flight.leave();
+            }
+        }
+
+        /*
+         * Runs UploadPack into the spool and follows it like any other request. Returns only once
+         * UploadPack is done, even if the client went away, so that the slot held for this response
+         * keeps covering UploadPack while it runs for the followers.
+         */
+        private void lead(Flight flight, InputStream input, OutputStream output) throws IOException {
+            Future<?> producing;
+            try {
+                producing = producers.submit(() -> produce(flight, input));
+            }
+            catch (RuntimeException e) {
+                flight.finish(e);
+                flights.remove(this.key, flight);
+                flight.leave();
+                throw e;
+            }
+
+            try {
+                flight.follow(output);
+            }
+            finally {
+                awaitProduced(producing);
+                flight.leave();
+            }
+        }
+
+        private void produce(Flight flight, InputStream input) {
+            Throwable failure = null;
+            try {
+                Path file = Files.createTempFile("cargo-upload-pack-", ".out");
+                flight.start(file);
+                try (OutputStream spool = new SpoolOutputStream(flight, Files.newOutputStream(file))) {
+                    this.upload.copy(input, spool);
+                }
+            }
+            catch (IOException | RuntimeException | Error e) {
+                failure = e;
+            }
+            finally {
+                flight.finish(failure);
+                flights.remove(this.key, flight);
+            }
+        }
+
+        private void awaitProduced(Future<?> producing) throws InterruptedIOException {
+            try {
+                producing.get();
+            }
+            catch (ExecutionException e) {
+                // produce() hands any failure to the flight, which reports it to every reader.
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for upload-pack");
+            }
+        }
+    }
+
+    /*
+     * The output of a flight that was running when the request was handled. Its place in the
+     * flight is taken by join(), and given up by copy() or abandon(), whichever comes first.
+     */
+    class Follower
+            implements Payload
+    {
+        private final Flight flight;
+
+        private final AtomicBoolean left = new AtomicBoolean();
+
+        private Follower(Flight flight) {
+            this.flight = flight;
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            // The output is copied from the leader's spool, not computed from the request.
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public long getSize() {
+            return -1;
+        }
+
+        @Override
+        public String getContentType() {
+            return GitRepositoryHandlers.UPLOAD_PACK_RESULT_TYPE;
+        }
+
+        @Override
+        public void copy(InputStream input, OutputStream output) throws IOException {
+            if (this.left.get())
+                throw new IOException("Shared upload-pack was abandoned before it was sent");
+            try {
+                this.flight.follow(output);
+            }
+            finally {
+                abandon();
+            }
+        }
+
+        void abandon() {
+            if (this.left.compareAndSet(false, true))
+                this.flight.leave();
+        }
+    }
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    // Runs UploadPack for the flights. Each run is waited for by a request
+    // holding a pack slot, so there are never more than there are slots.
+    private final ExecutorService producers = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cargo-upload-pack-%d").build());
+
+    /*
+     * Registers a flight for key and returns the Leader payload which runs the given upload-pack,
+     * unless a request with the same key is already running it, in which case a Follower of that
+     * run is returned instead. Either must be written or abandoned.
+     */
+    Payload share(String key, UploadPackPayload upload) {
+        while (true) {
+            Flight flight = new Flight();
+            Flight running = this.flights.putIfAbsent(key, flight);
+            if (running == null)
+                return new Leader(key, upload, flight);
+
+            // A flight that has already been cleaned up cannot be joined;
+            // it is out of the map by then, so the next attempt leads.
+            if (running.join())
+                return new Follower(running);
+        }
+    }
+
+    /*
+     * Joins the flight running for key, if there is one. The returned payload sends its output,
+     * and must either be written or abandoned so that the spool file can be deleted.
+     */
+    @Nullable
+    Follower join(String key) {
+        Flight running = this.flights.get(key);
+        return running != null && running.join() ? new Follower(running) : null;
+    }
+}
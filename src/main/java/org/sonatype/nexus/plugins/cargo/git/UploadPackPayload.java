@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.git;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+
+import org.eclipse.jgit.transport.UploadPack;
+import org.sonatype.nexus.plugins.cargo.git.repo.Repository;
+import org.sonatype.nexus.repository.storage.StorageFacet;
+import org.sonatype.nexus.repository.view.Payload;
+import org.sonatype.nexus.transaction.UnitOfWork;
+
+/*
+ * Runs UploadPack while the response is being sent, so the pack goes to the client as it is
+ * written rather than being collected on the heap first. openInputStream() supplies the buffered
+ * negotiation and copy() writes the result of running UploadPack on it. UploadPack itself sends
+ * progress on the side-band when the client asked for it.
+ */
+class UploadPackPayload
+        implements Payload
+{
+    private final Repository repository;
+
+    private final StorageFacet storage_facet;
+
+    private final byte[] request;
+
+    private final Collection<String> protocol_parameters;
+
+    UploadPackPayload(Repository repository,
+                      StorageFacet storage_facet,
+                      byte[] request,
+                      Collection<String> protocol_parameters)
+    {
+        this.repository = repository;
+        this.storage_facet = storage_facet;
+        this.request = request;
+        this.protocol_parameters = protocol_parameters;
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException {
+        return new ByteArrayInputStream(this.request);
+    }
+
+    @Override
+    public long getSize() {
+        return -1;
+    }
+
+    @Override
+    public String getContentType() {
+        return GitRepositoryHandlers.UPLOAD_PACK_RESULT_TYPE;
+    }
+
+    @Override
+    public void copy(InputStream input, OutputStream output) throws IOException {
+        UploadPack service = new UploadPack(this.repository);
+        service.setBiDirectionalPipe(false);
+        if (!this.protocol_parameters.isEmpty())
+            service.setExtraParameters(this.protocol_parameters);
+
+        // The handler's unit of work has ended by the time the response is
+        // written, so the objects are read in one of our own.
+        UnitOfWork outer = UnitOfWork.pause();
+        try {
+            UnitOfWork.begin(this.storage_facet.txSupplier());
+            try {
+                service.upload(input, output, null);
+                output.flush();
+            }
+            finally {
+                UnitOfWork.end();
+            }
+        }
+        finally {
+            if (outer != null) {
+                UnitOfWork.resume(outer);
+            }
+        }
+    }
+}
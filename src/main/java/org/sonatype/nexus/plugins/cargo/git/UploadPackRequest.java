@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.git;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.GitProtocolConstants;
+import org.eclipse.jgit.transport.PacketLineIn;
+import org.eclipse.jgit.transport.SideBandOutputStream;
+
+/*
+ * The negotiation part of a stateless git-upload-pack request, parsed just far enough to decide
+ * whether the request can be answered without running UploadPack.
+ */
+class UploadPackRequest
+{
+    final Set<ObjectId> wants = new LinkedHashSet<ObjectId>();
+
+    final Set<String> capabilities = new HashSet<String>();
+
+    // The command of a protocol v2 request, e.g. "ls-refs" or "fetch".
+    @Nullable
+    String command;
+
+    int haves;
+
+    boolean shallow;
+
+    boolean filter;
+
+    boolean done;
+
+    /*
+     * Anything that cannot be parsed here, such as a compressed request, yields an empty request so
+     * the caller falls back to UploadPack.
+     */
+    static UploadPackRequest parse(byte[] body) {
+        try {
+            return parse(new PacketLineIn(new ByteArrayInputStream(body)));
+        }
+        catch (IOException | IllegalArgumentException e) {
+            return new UploadPackRequest();
+        }
+    }
+
+    private static UploadPackRequest parse(PacketLineIn in) throws IOException {
+        UploadPackRequest request = new UploadPackRequest();
+        for (;;) {
+            String line;
+            try {
+                line = in.readString();
+            }
+            catch (EOFException e) {
+                break;
+            }
+
+            if (line == PacketLineIn.END) {
+                continue;
+            }
+            else if (line.startsWith("command=")) {
+                request.command = line.substring("command=".length());
+            }
+            else if (line.startsWith("want ") && line.length() >= 45) {
+                if (request.wants.isEmpty() && line.length() > 45)
+                    request.capabilities.addAll(Arrays.asList(line.substring(46).split(" ")));
+                request.wants.add(ObjectId.fromString(line.substring(5, 45)));
+            }
+            else if (line.startsWith("have ")) {
+                request.haves++;
+            }
+            else if (line.startsWith("shallow ") || line.startsWith("deepen")) {
+                request.shallow = true;
+            }
+            else if (line.startsWith("filter ")) {
+                request.filter = true;
+            }
+            else if (line.equals("done")) {
+                request.done = true;
+            }
+        }
+        return request;
+    }
+
+    /*
+     * True for a plain full clone: the client has nothing, wants whole histories and has finished
+     * negotiating. Such a request is answered with "NAK" followed by a pack of everything it wants.
+     */
+    boolean isFullClone() {
+        return !this.wants.isEmpty() && this.haves == 0 && !this.shallow && !this.filter && this.done
+                && this.capabilities.contains(GitProtocolConstants.OPTION_OFS_DELTA);
+    }
+
+    /* True for a protocol v2 request for the refs, which involves no objects. */
+    boolean isListRefs() {
+        return "ls-refs".equals(this.command);
+    }
+
+    /* Size of the side-band packets the client asked for, or 0 to send the pack unframed. */
+    int getSideBandBufferSize() {
+        if (this.capabilities.contains(GitProtocolConstants.OPTION_SIDE_BAND_64K))
+            return SideBandOutputStream.MAX_BUF;
+        if (this.capabilities.contains(GitProtocolConstants.OPTION_SIDE_BAND))
+            return SideBandOutputStream.SMALL_BUF;
+        return 0;
+    }
+
+    Set<ObjectId> getWants() {
+        return Collections.unmodifiableSet(this.wants);
+    }
+}
@@ -20,7 +20,9 @@ import org.sonatype.nexus.repository.cache.CacheControllerHolder.CacheType;
 
 public enum AssetKind
 {
-    OBJECT(CacheControllerHolder.CONTENT), CONFIG(CacheControllerHolder.METADATA), REF(CacheControllerHolder.METADATA);
+    OBJECT(CacheControllerHolder.CONTENT), CONFIG(CacheControllerHolder.METADATA), REF(CacheControllerHolder.METADATA),
+    CACHED_PACK(CacheControllerHolder.CONTENT), PACK(CacheControllerHolder.CONTENT),
+    PACK_INDEX(CacheControllerHolder.CONTENT), PACK_BITMAP(CacheControllerHolder.CONTENT);
 
     private final CacheType cache_type;
 
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.git.assets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nullable;
+import javax.inject.Named;
+
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.jgit.lib.ObjectId;
+import org.sonatype.nexus.blobstore.api.Blob;
+import org.sonatype.nexus.plugins.cargo.git.Constants;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.storage.AssetEntityAdapter;
+import org.sonatype.nexus.repository.storage.Bucket;
+import org.sonatype.nexus.repository.storage.Component;
+import org.sonatype.nexus.repository.storage.MetadataNodeEntityAdapter;
+import org.sonatype.nexus.repository.storage.StorageTx;
+import org.sonatype.nexus.repository.transaction.TransactionalStoreBlob;
+import org.sonatype.nexus.repository.transaction.TransactionalTouchBlob;
+import org.sonatype.nexus.repository.transaction.TransactionalTouchMetadata;
+import org.sonatype.nexus.transaction.UnitOfWork;
+
+/*
+ * A pack holding every object reachable from a git repository's refs, as they were when the pack
+ * was built. The ref values are recorded with the pack so a clone can tell whether the pack
+ * contains everything it asked for.
+ */
+@Named
+public class AssetKindCachedPackAttributes
+{
+    private final static String NAME = "cached-pack";
+
+    private final static String P_PACK_TIPS = "git-pack-tips";
+
+    private final static String CONTENT_TYPE_PACK = "application/x-git-packed-objects";
+
+    private static String getAttributePropertyName(String format_attribute) {
+        return MetadataNodeEntityAdapter.P_ATTRIBUTES + "." + format_attribute;
+    }
+
+    @Nullable
+    @TransactionalTouchMetadata
+    public Asset findCachedPackAsset(Component component) {
+        StorageTx tx = UnitOfWork.currentTx();
+        return tx.findAssetWithProperty(getAttributePropertyName(AssetEntityAdapter.P_ASSET_KIND),
+                AssetKind.CACHED_PACK.name(), component);
+    }
+
+    @TransactionalStoreBlob
+    public Asset setCachedPack(Bucket bucket, Component component, Set<ObjectId> tips, InputStream contents)
+            throws IOException
+    {
+        StorageTx tx = UnitOfWork.currentTx();
+        Asset asset = findCachedPackAsset(component);
+        if (asset == null) {
+            asset = tx.createAsset(bucket, component);
+            asset.name(NAME);
+            asset.attributes().set(AssetEntityAdapter.P_ASSET_KIND, AssetKind.CACHED_PACK.name());
+        }
+
+        tx.setBlob(asset, NAME, () -> contents, Constants.OBJECT_HASHES, null, CONTENT_TYPE_PACK, true);
+        asset.formatAttributes().set(P_PACK_TIPS,
+                tips.stream().map(ObjectId::name).sorted().collect(Collectors.joining(",")));
+        tx.saveAsset(asset);
+        return asset;
+    }
+
+    public Set<ObjectId> getTips(Asset pack_asset) {
+        Set<ObjectId> tips = new HashSet<ObjectId>();
+        String value = pack_asset.formatAttributes().get(P_PACK_TIPS, String.class);
+        for (String tip : StringUtils.split(StringUtils.defaultString(value), ',')) {
+            tips.add(ObjectId.fromString(tip));
+        }
+        return tips;
+    }
+
+    @Nullable
+    @TransactionalTouchBlob
+    public Blob getBlob(Asset pack_asset) {
+        StorageTx tx = UnitOfWork.currentTx();
+        return pack_asset.blobRef() == null ? null : tx.getBlob(pack_asset.blobRef());
+    }
+}
@@ -16,17 +16,25 @@ package org.sonatype.nexus.plugins.cargo.git.assets;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+import javax.annotation.Nullable;
 import javax.inject.Named;
 
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 
 import org.eclipse.jgit.lib.AbbreviatedObjectId;
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.ObjectId;
+import org.joda.time.DateTime;
 import org.sonatype.goodies.common.Loggers;
 import org.sonatype.nexus.blobstore.api.Blob;
 import org.sonatype.nexus.common.hash.HashAlgorithm;
@@ -42,6 +50,8 @@ import org.sonatype.nexus.repository.storage.ComponentEntityAdapter;
 import org.sonatype.nexus.repository.storage.MetadataNodeEntityAdapter;
 import org.sonatype.nexus.repository.storage.Query;
 import org.sonatype.nexus.repository.storage.StorageTx;
+import org.sonatype.nexus.repository.transaction.TransactionalDeleteBlob;
+import org.sonatype.nexus.repository.transaction.TransactionalStoreMetadata;
 import org.sonatype.nexus.repository.transaction.TransactionalTouchBlob;
 import org.sonatype.nexus.repository.transaction.TransactionalTouchMetadata;
 import org.sonatype.nexus.transaction.UnitOfWork;
@@ -51,10 +61,14 @@ public class AssetKindObjectAttributes
 {
     private final static String P_OBJECT_TYPE = "git-object-type";
 
+    private final static String P_LAST_USED = "git-object-last-used";
+
     private final static String CONTENT_TYPE_LOOSE_OBJECT = "application/x-git-loose-object";
 
     private final static HashMap<String,String> EmptyMap = new HashMap<String,String>();
 
+    private final static int MAX_IDS_PER_QUERY = 500;
+
     protected BucketEntityAdapter bucketEntityAdapter;
 
     protected ComponentEntityAdapter componentEntityAdapter;
@@ -71,34 +85,35 @@ public class AssetKindObjectAttributes
         this.componentEntityAdapter = componentEntityAdapter;
     }
 
+    /*
+     * Stores a git object whose id the caller has already computed and checked to be new. Callers
+     * hash first so that objects which already exist never reach the blob store.
+     */
     @TransactionalTouchMetadata
     @TransactionalTouchBlob
     public Asset createObjectAsset(Bucket bucket,
                                    Component component,
+                                   ObjectId object_id,
                                    int object_type,
                                    long length,
                                    InputStream contents) throws IOException
     {
         StorageTx tx = UnitOfWork.currentTx();
 
-        // Calculate the Git object id while the blob is being written.
+        // Calculate the Git object id again while the blob is being written
+        // to verify the contents match the id the object is stored under.
         HashAlgorithm object_id_hash =
                 new HashAlgorithm("git-object-id", new ObjectIdHashFunction(object_type, length));
         List<HashAlgorithm> hashes = new ArrayList<HashAlgorithm>(Constants.OBJECT_HASHES);
         hashes.add(object_id_hash);
 
-        // Create a blob from the contents of the InputStream. This will be a
-        // unique blob but the object ID may already exist. The blob will be
-        // thrown away if it isn't attached to an Asset.
         AssetBlob assetBlob = tx.createBlob("git-object", () -> contents, hashes, EmptyMap,
                 CONTENT_TYPE_LOOSE_OBJECT, true);
 
-        // If the calculated ObjectId is already saved in the object database,
-        // we're done.
-        ObjectId object_id = ObjectId.fromRaw(assetBlob.getHashes().get(object_id_hash).asBytes());
-        Asset existing_asset = this.findObjectAssetWithObjectId(bucket, component, object_id);
-        if (existing_asset != null)
-            return existing_asset;
+        ObjectId written_id = ObjectId.fromRaw(assetBlob.getHashes().get(object_id_hash).asBytes());
+        if (!written_id.equals(object_id)) {
+            throw new IOException("Object " + object_id.name() + " was written with id " + written_id.name());
+        }
 
         // Create an Asset to hold the new Git object. Attach the objectType as metadata.
         Asset asset = tx.createAsset(bucket, component);
@@ -144,6 +159,137 @@ public class AssetKindObjectAttributes
         return objAssets.hasNext() ? objAssets.next() : null;
     }
 
+    /*
+     * Records that a writer is reusing stored loose objects instead of storing them again, and
+     * returns which of the given objects are stored loose. A garbage collection then treats them as
+     * if they had just been stored. The ids are looked up in chunks so a pack of thousands of
+     * objects costs a handful of queries instead of one per object.
+     */
+    @TransactionalStoreMetadata
+    public Set<ObjectId> freshenObjectAssets(Bucket bucket,
+                                             Component component,
+                                             Collection<? extends AnyObjectId> object_ids)
+    {
+        StorageTx tx = UnitOfWork.currentTx();
+        Date now = new Date();
+        Set<ObjectId> existing = new HashSet<ObjectId>();
+        List<String> names = object_ids.stream().map(AnyObjectId::name).distinct().collect(Collectors.toList());
+        for (List<String> chunk : Lists.partition(names, MAX_IDS_PER_QUERY)) {
+            Query query = Query.builder().where(AssetEntityAdapter.P_BUCKET)
+                    .eq(bucketEntityAdapter.recordIdentity(bucket)).and(AssetEntityAdapter.P_COMPONENT)
+                    .eq(componentEntityAdapter.recordIdentity(component))
+                    .and(getAttributePropertyName(AssetEntityAdapter.P_ASSET_KIND)).eq(AssetKind.OBJECT.name())
+                    .and(AssetEntityAdapter.P_NAME + " IN ").param(chunk).build();
+            for (Asset obj_asset : tx.findAssets(query, null)) {
+                obj_asset.formatAttributes().set(P_LAST_USED, now);
+                tx.saveAsset(obj_asset);
+                existing.add(getObjectId(obj_asset));
+            }
+        }
+        return existing;
+    }
+
+    /*
+     * Returns up to limit loose objects of a git repository smaller than max_size bytes, in no
+     * particular order.
+     */
+    @TransactionalTouchMetadata
+    public Iterable<Asset> browseObjectAssets(Bucket bucket, Component component, long max_size, int limit) {
+        StorageTx tx = UnitOfWork.currentTx();
+        Query query = Query.builder().where(AssetEntityAdapter.P_BUCKET)
+                .eq(bucketEntityAdapter.recordIdentity(bucket)).and(AssetEntityAdapter.P_COMPONENT)
+                .eq(componentEntityAdapter.recordIdentity(component))
+                .and(getAttributePropertyName(AssetEntityAdapter.P_ASSET_KIND)).eq(AssetKind.OBJECT.name())
+                .and(AssetEntityAdapter.P_SIZE + " < ").param(max_size)
+                .suffix("LIMIT " + limit).build();
+        return tx.findAssets(query, null);
+    }
+
+    /*
+     * Returns up to limit loose objects of a git repository ordered by name, starting after the
+     * given name, or at the first object if it is null. Callers page through all loose objects by
+     * passing the name of the last object of the previous page.
+     */
+    @TransactionalTouchMetadata
+    public Iterable<Asset> browseObjectAssetsAfter(Bucket bucket,
+                                                   Component component,
+                                                   @Nullable String after,
+                                                   int limit)
+    {
+        StorageTx tx = UnitOfWork.currentTx();
+        Query.Builder query = Query.builder().where(AssetEntityAdapter.P_BUCKET)
+                .eq(bucketEntityAdapter.recordIdentity(bucket)).and(AssetEntityAdapter.P_COMPONENT)
+                .eq(componentEntityAdapter.recordIdentity(component))
+                .and(getAttributePropertyName(AssetEntityAdapter.P_ASSET_KIND)).eq(AssetKind.OBJECT.name());
+        if (after != null)
+            query.and(AssetEntityAdapter.P_NAME + " > ").param(after);
+        return tx.findAssets(query.suffix("ORDER BY " + AssetEntityAdapter.P_NAME + " LIMIT " + limit).build(), null);
+    }
+
+    /*
+     * Deletes the loose copies of the given objects, together with their blobs. Callers must make
+     * sure every object is still readable from somewhere else, e.g. a pack.
+     */
+    @TransactionalDeleteBlob
+    public int deleteObjectAssets(Bucket bucket, Component component, Collection<? extends AnyObjectId> object_ids) {
+        StorageTx tx = UnitOfWork.currentTx();
+        int deleted = 0;
+        List<String> names = object_ids.stream().map(AnyObjectId::name).distinct().collect(Collectors.toList());
+        for (List<String> chunk : Lists.partition(names, MAX_IDS_PER_QUERY)) {
+            Query query = Query.builder().where(AssetEntityAdapter.P_BUCKET)
+                    .eq(bucketEntityAdapter.recordIdentity(bucket)).and(AssetEntityAdapter.P_COMPONENT)
+                    .eq(componentEntityAdapter.recordIdentity(component))
+                    .and(getAttributePropertyName(AssetEntityAdapter.P_ASSET_KIND)).eq(AssetKind.OBJECT.name())
+                    .and(AssetEntityAdapter.P_NAME + " IN ").param(chunk).build();
+            for (Asset obj_asset : tx.findAssets(query, null)) {
+                tx.deleteAsset(obj_asset);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /*
+     * Deletes those of the given loose objects which were neither stored nor reused since the given
+     * time, together with their blobs. Each object is checked again in the deleting transaction: a
+     * writer which reused it before is seen here, and one which reuses it after has its own
+     * transaction fail and retried.
+     */
+    @TransactionalDeleteBlob
+    public int deleteObjectAssetsUnusedSince(Bucket bucket,
+                                             Component component,
+                                             Collection<? extends AnyObjectId> object_ids,
+                                             Date since)
+    {
+        StorageTx tx = UnitOfWork.currentTx();
+        int deleted = 0;
+        List<String> names = object_ids.stream().map(AnyObjectId::name).distinct().collect(Collectors.toList());
+        for (List<String> chunk : Lists.partition(names, MAX_IDS_PER_QUERY)) {
+            Query query = Query.builder().where(AssetEntityAdapter.P_BUCKET)
+                    .eq(bucketEntityAdapter.recordIdentity(bucket)).and(AssetEntityAdapter.P_COMPONENT)
+                    .eq(componentEntityAdapter.recordIdentity(component))
+                    .and(getAttributePropertyName(AssetEntityAdapter.P_ASSET_KIND)).eq(AssetKind.OBJECT.name())
+                    .and(AssetEntityAdapter.P_NAME + " IN ").param(chunk).build();
+            for (Asset obj_asset : tx.findAssets(query, null)) {
+                if (isUnusedSince(obj_asset, since)) {
+                    tx.deleteAsset(obj_asset);
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /*
+     * Returns whether a loose object was neither stored nor reused since the given time. Without a
+     * creation time the object cannot be shown to be old enough.
+     */
+    public boolean isUnusedSince(Asset obj_asset, Date since) {
+        DateTime created = obj_asset.blobCreated();
+        Date last_used = obj_asset.formatAttributes().get(P_LAST_USED, Date.class);
+        return created != null && created.toDate().before(since) && (last_used == null || last_used.before(since));
+    }
+
     public ObjectId getObjectId(Asset obj_asset) {
         return ObjectId.fromString(obj_asset.name());
     }
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.git.assets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.apache.commons.lang.StringUtils;
+import org.joda.time.DateTime;
+import org.sonatype.nexus.blobstore.api.Blob;
+import org.sonatype.nexus.plugins.cargo.git.Constants;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.storage.AssetEntityAdapter;
+import org.sonatype.nexus.repository.storage.Bucket;
+import org.sonatype.nexus.repository.storage.Component;
+import org.sonatype.nexus.repository.storage.ComponentEntityAdapter;
+import org.sonatype.nexus.repository.storage.MetadataNodeEntityAdapter;
+import org.sonatype.nexus.repository.storage.Query;
+import org.sonatype.nexus.repository.storage.StorageTx;
+import org.sonatype.nexus.repository.transaction.TransactionalDeleteBlob;
+import org.sonatype.nexus.repository.transaction.TransactionalStoreBlob;
+import org.sonatype.nexus.repository.transaction.TransactionalStoreMetadata;
+import org.sonatype.nexus.repository.transaction.TransactionalTouchBlob;
+import org.sonatype.nexus.repository.transaction.TransactionalTouchMetadata;
+import org.sonatype.nexus.transaction.UnitOfWork;
+
+/*
+ * Packs of git objects, each stored as a "pack-<name>.pack" asset with a companion
+ * "pack-<name>.idx" asset holding its version 2 pack index and, for packs of everything reachable
+ * from the refs, a "pack-<name>.bitmap" asset holding its reachability bitmaps. All assets of a
+ * pack are written in the same transaction, so a reader that finds the pack asset can always load
+ * the rest.
+ */
+@Named
+public class AssetKindPackAttributes
+{
+    private final static String P_OBJECT_COUNT = "git-pack-object-count";
+
+    private final static String P_HAS_BITMAP = "git-pack-has-bitmap";
+
+    private final static String P_LAST_USED = "git-pack-last-used";
+
+    private final static String PACK_SUFFIX = ".pack";
+
+    private final static String INDEX_SUFFIX = ".idx";
+
+    private final static String BITMAP_SUFFIX = ".bitmap";
+
+    private final static String CONTENT_TYPE_PACK = "application/x-git-packed-objects";
+
+    private final static String CONTENT_TYPE_PACK_INDEX = "application/x-git-pack-index";
+
+    private final static String CONTENT_TYPE_PACK_BITMAP = "application/x-git-pack-bitmap";
+
+    protected ComponentEntityAdapter componentEntityAdapter;
+
+    private static String getAttributePropertyName(String format_attribute) {
+        return MetadataNodeEntityAdapter.P_ATTRIBUTES + "." + format_attribute;
+    }
+
+    @Inject
+    protected AssetKindPackAttributes(ComponentEntityAdapter componentEntityAdapter) {
+        this.componentEntityAdapter = componentEntityAdapter;
+    }
+
+    @TransactionalTouchMetadata
+    public List<Asset> findPackAssets(Component component) {
+        StorageTx tx = UnitOfWork.currentTx();
+        Query query = Query.builder().where(AssetEntityAdapter.P_COMPONENT)
+                .eq(componentEntityAdapter.recordIdentity(component))
+                .and(getAttributePropertyName(AssetEntityAdapter.P_ASSET_KIND)).eq(AssetKind.PACK.name()).build();
+        List<Asset> packs = new ArrayList<Asset>();
+        for (Asset asset : tx.findAssets(query, null)) {
+            packs.add(asset);
+        }
+        return packs;
+    }
+
+    @Nullable
+    @TransactionalTouchMetadata
+    public Asset findPackIndexAsset(Component component, String pack_name) {
+        StorageTx tx = UnitOfWork.currentTx();
+        return tx.findAssetWithProperty(AssetEntityAdapter.P_NAME, pack_name + INDEX_SUFFIX, component);
+    }
+
+    @Nullable
+    @TransactionalTouchMetadata
+    public Asset findPackBitmapAsset(Component component, String pack_name) {
+        StorageTx tx = UnitOfWork.currentTx();
+        return tx.findAssetWithProperty(AssetEntityAdapter.P_NAME, pack_name + BITMAP_SUFFIX, component);
+    }
+
+    /*
+     * Stores a pack, its index and, if there is one, its bitmap index under "pack-<name>", where
+     * name is the pack's content name.
+     */
+    @TransactionalStoreBlob
+    public Asset createPack(Bucket bucket,
+                            Component component,
+                            String name,
+                            long object_count,
+                            InputStream pack,
+                            InputStream index,
+                            @Nullable InputStream bitmap) throws IOException
+    {
+        StorageTx tx = UnitOfWork.currentTx();
+        String pack_name = "pack-" + name;
+
+        Asset index_asset = tx.createAsset(bucket, component);
+        index_asset.name(pack_name + INDEX_SUFFIX);
+        index_asset.attributes().set(AssetEntityAdapter.P_ASSET_KIND, AssetKind.PACK_INDEX.name());
+        tx.setBlob(index_asset, index_asset.name(), () -> index, Constants.OBJECT_HASHES, null,
+                CONTENT_TYPE_PACK_INDEX, true);
+        tx.saveAsset(index_asset);
+
+        if (bitmap != null) {
+            Asset bitmap_asset = tx.createAsset(bucket, component);
+            bitmap_asset.name(pack_name + BITMAP_SUFFIX);
+            bitmap_asset.attributes().set(AssetEntityAdapter.P_ASSET_KIND, AssetKind.PACK_BITMAP.name());
+            tx.setBlob(bitmap_asset, bitmap_asset.name(), () -> bitmap, Constants.OBJECT_HASHES, null,
+                    CONTENT_TYPE_PACK_BITMAP, true);
+            tx.saveAsset(bitmap_asset);
+        }
+
+        Asset pack_asset = tx.createAsset(bucket, component);
+        pack_asset.name(pack_name + PACK_SUFFIX);
+        pack_asset.attributes().set(AssetEntityAdapter.P_ASSET_KIND, AssetKind.PACK.name());
+        pack_asset.formatAttributes().set(P_OBJECT_COUNT, Long.valueOf(object_count));
+        pack_asset.formatAttributes().set(P_HAS_BITMAP, Boolean.valueOf(bitmap != null));
+        tx.setBlob(pack_asset, pack_asset.name(), () -> pack, Constants.OBJECT_HASHES, null, CONTENT_TYPE_PACK,
+                true);
+        tx.saveAsset(pack_asset);
+        return pack_asset;
+    }
+
+    /* Deletes a pack together with its index and bitmap index. */
+    @TransactionalDeleteBlob
+    public void deletePack(Component component, String pack_name) {
+        StorageTx tx = UnitOfWork.currentTx();
+        for (String suffix : new String[] { PACK_SUFFIX, INDEX_SUFFIX, BITMAP_SUFFIX }) {
+            Asset asset = tx.findAssetWithProperty(AssetEntityAdapter.P_NAME, pack_name + suffix, component);
+            if (asset != null)
+                tx.deleteAsset(asset);
+        }
+    }
+
+    /*
+     * Deletes a pack like deletePack() if it was neither stored nor reused since the given time, and
+     * returns whether it did. The pack is checked again in the deleting transaction, so a writer
+     * reusing one of its objects either is seen here or has its own transaction retried.
+     */
+    @TransactionalDeleteBlob
+    public boolean deletePackUnusedSince(Component component, String pack_name, Date since) {
+        StorageTx tx = UnitOfWork.currentTx();
+        Asset pack_asset = tx.findAssetWithProperty(AssetEntityAdapter.P_NAME, pack_name + PACK_SUFFIX, component);
+        if (pack_asset == null || !isUnusedSince(pack_asset, since))
+            return false;
+
+        deletePack(component, pack_name);
+        return true;
+    }
+
+    /*
+     * Records that a writer is reusing an object of a pack instead of storing it again, and returns
+     * false if the pack is gone. A garbage collection then treats the pack as if it had just been
+     * stored.
+     */
+    @TransactionalStoreMetadata
+    public boolean freshenPack(Component component, String pack_name) {
+        StorageTx tx = UnitOfWork.currentTx();
+        Asset pack_asset = tx.findAssetWithProperty(AssetEntityAdapter.P_NAME, pack_name + PACK_SUFFIX, component);
+        if (pack_asset == null)
+            return false;
+
+        pack_asset.formatAttributes().set(P_LAST_USED, new Date());
+        tx.saveAsset(pack_asset);
+        return true;
+    }
+
+    /* Returns whether a pack was neither stored nor reused since the given time, like for loose objects. */
+    public boolean isUnusedSince(Asset pack_asset, Date since) {
+        DateTime created = pack_asset.blobCreated();
+        Date last_used = pack_asset.formatAttributes().get(P_LAST_USED, Date.class);
+        return created != null && created.toDate().before(since) && (last_used == null || last_used.before(since));
+    }
+
+    public String getPackName(Asset pack_asset) {
+        return StringUtils.removeEnd(pack_asset.name(), PACK_SUFFIX);
+    }
+
+    public long getObjectCount(Asset pack_asset) {
+        Long count = pack_asset.formatAttributes().get(P_OBJECT_COUNT, Long.class);
+        return count == null ? 0 : count.longValue();
+    }
+
+    public boolean hasBitmap(Asset pack_asset) {
+        return Boolean.TRUE.equals(pack_asset.formatAttributes().get(P_HAS_BITMAP, Boolean.class));
+    }
+
+    @Nullable
+    @TransactionalTouchBlob
+    public InputStream getContents(Asset asset) {
+        StorageTx tx = UnitOfWork.currentTx();
+        Blob blob = asset.blobRef() == null ? null : tx.getBlob(asset.blobRef());
+        return blob == null ? null : blob.getInputStream();
+    }
+}
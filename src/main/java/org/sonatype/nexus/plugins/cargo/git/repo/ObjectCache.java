@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.git.repo;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+/*
+ * Size-bounded cache of git objects for a single git repository. Git objects are immutable, so an
+ * entry never needs to be invalidated; it only has to be evicted to stay within the memory bound.
+ * Upload-pack opens the same commits and trees many times per clone, and every open that hits the
+ * cache avoids an asset query and a blob read.
+ */
+public class ObjectCache
+{
+    static class Entry
+    {
+        final int type;
+
+        final byte[] data;
+
+        Entry(int type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    // Rough per-entry overhead of the key, the entry and the cache segment.
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final Cache<ObjectId, Entry> cache;
+
+    private final long maxObjectSize;
+
+    public ObjectCache(long maxBytes) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((ObjectId key, Entry entry) -> entry.data.length + ENTRY_OVERHEAD)
+                .recordStats()
+                .build();
+
+        // A single object must not be able to flush most of the cache.
+        this.maxObjectSize = maxBytes / 16;
+    }
+
+    @Nullable
+    Entry get(AnyObjectId object_id) {
+        return this.cache.getIfPresent(object_id);
+    }
+
+    void put(AnyObjectId object_id, int type, byte[] data) {
+        if (data.length > this.maxObjectSize)
+            return;
+        this.cache.put(object_id.copy(), new Entry(type, data));
+    }
+
+    public CacheStats stats() {
+        return this.cache.stats();
+    }
+
+    public long size() {
+        return this.cache.size();
+    }
+
+    public void invalidateAll() {
+        this.cache.invalidateAll();
+    }
+}
@@ -13,9 +13,44 @@
 
 package org.sonatype.nexus.plugins.cargo.git.repo;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.sonatype.goodies.common.Loggers;
+import org.sonatype.nexus.plugins.cargo.git.assets.AssetKindObjectAttributes;
+import org.sonatype.nexus.plugins.cargo.git.assets.AssetKindPackAttributes;
+import org.sonatype.nexus.repository.storage.Asset;
+
 public class ObjectDatabase
         extends org.eclipse.jgit.lib.ObjectDatabase
 {
+    // Loose objects deleted per transaction once they have been packed.
+    private static final int DELETE_BATCH_SIZE = 1000;
+
     private final Repository db;
 
     ObjectDatabase(Repository db) {
@@ -32,6 +67,283 @@ public class ObjectDatabase
         return new ObjectInserter(db);
     }
 
+    /*
+     * Moves up to max_objects loose objects into a new pack and returns how many were moved. Objects
+     * at or above the big file threshold stay loose, as packed objects are always read whole.
+     *
+     * Must be called in a unit of work but outside of a transaction: the pack is committed on its
+     * own, and only then are the loose copies deleted, so every object stays readable throughout.
+     */
+    public int packLooseObjects(int max_objects) throws IOException {
+        AssetKindObjectAttributes object_attributes = this.db.getAssetAttributesObject();
+        PackConfig pack_config = new PackConfig(this.db);
+
+        Path pack_file = Files.createTempFile("cargo-pack", ".pack");
+        Path index_file = Files.createTempFile("cargo-pack", ".idx");
+        List<ObjectId> packed = new ArrayList<ObjectId>();
+        try {
+            String name;
+            long started = System.currentTimeMillis();
+            try (ObjectReader reader = newReader();
+                 RevWalk walk = new RevWalk(reader);
+                 PackWriter writer = new PackWriter(pack_config, reader)) {
+                List<RevObject> objects = new ArrayList<RevObject>();
+                for (Asset obj_asset : object_attributes.browseObjectAssets(this.db.getBucket(),
+                        this.db.getComponent(), pack_config.getBigFileThreshold(), max_objects)) {
+                    ObjectId object_id = object_attributes.getObjectId(obj_asset);
+                    objects.add(walk.lookupAny(object_id, object_attributes.getObjectType(obj_asset)));
+                    packed.add(object_id);
+                }
+                if (objects.isEmpty())
+                    return 0;
+
+                writer.setDeltaBaseAsOffset(true);
+                writer.setThin(false);
+                writer.setUseCachedPacks(false);
+                writer.preparePack(objects.iterator());
+                try (OutputStream out = Files.newOutputStream(pack_file)) {
+                    writer.writePack(NullProgressMonitor.INSTANCE, NullProgressMonitor.INSTANCE, out);
+                }
+                try (OutputStream out = Files.newOutputStream(index_file)) {
+                    writer.writeIndex(out);
+                }
+                name = writer.computeName().name();
+            }
+
+            try (InputStream pack = Files.newInputStream(pack_file);
+                 InputStream index = Files.newInputStream(index_file)) {
+                this.db.getAssetAttributesPack().createPack(this.db.getBucket(), this.db.getComponent(), name,
+                        packed.size(), pack, index, null);
+            }
+            Loggers.getLogger(this).debug("Packed {} loose objects of {} into pack-{} in {}ms", packed.size(),
+                    this.db.getIdentifier(), name, System.currentTimeMillis() - started);
+        }
+        finally {
+            Files.deleteIfExists(pack_file);
+            Files.deleteIfExists(index_file);
+        }
+
+        // Readers which cannot find a deleted loose object list the packs
+        // again, but there is no need to make every one of them do so.
+        this.db.getPackDirectory().invalidate();
+        for (List<ObjectId> batch : Lists.partition(packed, DELETE_BATCH_SIZE)) {
+            object_attributes.deleteObjectAssets(this.db.getBucket(), this.db.getComponent(), batch);
+        }
+        return packed.size();
+    }
+
+    /*
+     * Writes a pack of every object reachable from the refs, with reachability bitmaps, and returns
+     * how many objects it holds. Afterwards the loose objects it holds are deleted, and so is every
+     * older pack all of whose objects it holds. Unless prune_before is given, objects which are not
+     * reachable are left where they are. With it, every other pack and loose object which was
+     * neither stored nor reused since then is deleted too, each checked again in the transaction
+     * that deletes it like in collectGarbage(). Writers on any node reuse objects through the
+     * ObjectInserter, which freshens them, so prune_before must be no later than the start of
+     * whatever made the objects unreachable.
+     *
+     * Must be called in a unit of work but outside of a transaction, like packLooseObjects().
+     */
+    public int packReachableObjects(@Nullable Date prune_before) throws IOException {
+        Set<ObjectId> tips = new HashSet<ObjectId>();
+        for (Ref ref : this.db.getRefDatabase().getRefsByPrefix(RefDatabase.ALL)) {
+            if (ref.getObjectId() != null)
+                tips.add(ref.getObjectId().copy());
+        }
+        if (tips.isEmpty())
+            return 0;
+
+        AssetKindPackAttributes pack_attributes = this.db.getAssetAttributesPack();
+        PackConfig pack_config = new PackConfig(this.db);
+        pack_config.setBuildBitmaps(true);
+
+        Path pack_file = Files.createTempFile("cargo-pack", ".pack");
+        Path index_file = Files.createTempFile("cargo-pack", ".idx");
+        Path bitmap_file = Files.createTempFile("cargo-pack", ".bitmap");
+        String name;
+        PackIndex index;
+        try {
+            boolean has_bitmap = false;
+            long object_count;
+            long started = System.currentTimeMillis();
+            try (ObjectReader reader = newReader();
+                 PackWriter writer = new PackWriter(pack_config, reader)) {
+                writer.setDeltaBaseAsOffset(true);
+                writer.setThin(false);
+                writer.setUseCachedPacks(false);
+                writer.preparePack(NullProgressMonitor.INSTANCE, tips, Collections.<ObjectId>emptySet());
+                try (OutputStream out = Files.newOutputStream(pack_file)) {
+                    writer.writePack(NullProgressMonitor.INSTANCE, NullProgressMonitor.INSTANCE, out);
+                }
+                try (OutputStream out = Files.newOutputStream(index_file)) {
+                    writer.writeIndex(out);
+                }
+                if (writer.prepareBitmapIndex(NullProgressMonitor.INSTANCE)) {
+                    try (OutputStream out = Files.newOutputStream(bitmap_file)) {
+                        writer.writeBitmapIndex(out);
+                    }
+                    has_bitmap = true;
+                }
+                name = writer.computeName().name();
+                object_count = writer.getObjectCount();
+            }
+            try (InputStream in = Files.newInputStream(index_file)) {
+                index = PackIndex.read(in);
+            }
+
+            // A pack is named after the objects it holds, so a pack with the
+            // same name already holds exactly these objects.
+            if (pack_attributes.findPackIndexAsset(this.db.getComponent(), "pack-" + name) == null) {
+                try (InputStream pack = Files.newInputStream(pack_file);
+                     InputStream index_in = Files.newInputStream(index_file);
+                     InputStream bitmap = has_bitmap ? Files.newInputStream(bitmap_file) : null) {
+                    pack_attributes.createPack(this.db.getBucket(), this.db.getComponent(), name, object_count, pack,
+                            index_in, bitmap);
+                }
+            }
+            Loggers.getLogger(this).debug("Packed {} reachable objects of {} into pack-{} in {}ms", object_count,
+                    this.db.getIdentifier(), name, System.currentTimeMillis() - started);
+        }
+        finally {
+            Files.deleteIfExists(pack_file);
+            Files.deleteIfExists(index_file);
+            Files.deleteIfExists(bitmap_file);
+        }
+
+        PackDirectory pack_directory = this.db.getPackDirectory();
+        for (StoredPack pack : pack_directory.reload(this.db)) {
+            if (pack.getName().equals("pack-" + name))
+                continue;
+            if (containsAll(index, pack.getIndex()))
+                pack_attributes.deletePack(this.db.getComponent(), pack.getName());
+            else if (prune_before != null)
+                pack_attributes.deletePackUnusedSince(this.db.getComponent(), pack.getName(), prune_before);
+        }
+        pack_directory.invalidate();
+
+        List<ObjectId> packed = new ArrayList<ObjectId>((int) index.getObjectCount());
+        for (PackIndex.MutableEntry entry : index) {
+            packed.add(entry.toObjectId());
+        }
+        for (List<ObjectId> batch : Lists.partition(packed, DELETE_BATCH_SIZE)) {
+            this.db.getAssetAttributesObject().deleteObjectAssets(this.db.getBucket(), this.db.getComponent(), batch);
+        }
+        if (prune_before != null) {
+            sweepLooseObjects(object_id -> false, prune_before);
+            forgetDeletedObjects();
+        }
+        return packed.size();
+    }
+
+    /*
+     * Deletes the loose objects and packs which are not reachable from any ref and were neither
+     * stored nor reused in the last grace_millis, and returns how many objects were deleted.
+     * Reachable objects are marked by walking the history from every ref into a compact
+     * ObjectIdSet. The loose objects are then swept page by page, each batch of unreachable ones
+     * being deleted in a transaction of its own. Packs are only deleted when none of their objects
+     * is reachable.
+     *
+     * Pushes and publishes store their objects before the ref that makes them reachable is updated.
+     * Objects they store are new, and objects they find already stored are freshened by the
+     * ObjectInserter rather than written again, so the grace period protects both. Every object
+     * and pack is checked again in the transaction that deletes it.
+     *
+     * Must be called in a unit of work but outside of a transaction, like packLooseObjects().
+     */
+    public int collectGarbage(long grace_millis) throws IOException {
+        Date cutoff = new Date(System.currentTimeMillis() - Math.max(0, grace_millis));
+        long started = System.currentTimeMillis();
+
+        ObjectIdSet reachable = new ObjectIdSet();
+        try (ObjectReader reader = newReader();
+             ObjectWalk walk = new ObjectWalk(reader)) {
+            for (Ref ref : this.db.getRefDatabase().getRefsByPrefix(RefDatabase.ALL)) {
+                if (ref.getObjectId() != null)
+                    walk.markStart(walk.parseAny(ref.getObjectId()));
+            }
+            for (RevCommit commit = walk.next(); commit != null; commit = walk.next()) {
+                reachable.add(commit);
+            }
+            for (RevObject object = walk.nextObject(); object != null; object = walk.nextObject()) {
+                reachable.add(object);
+            }
+        }
+        Loggers.getLogger(this).debug("Marked {} reachable objects of {} in {}ms", reachable.size(),
+                this.db.getIdentifier(), System.currentTimeMillis() - started);
+
+        int deleted = sweepLooseObjects(reachable::contains, cutoff);
+
+        AssetKindPackAttributes pack_attributes = this.db.getAssetAttributesPack();
+        PackDirectory pack_directory = this.db.getPackDirectory();
+        for (StoredPack pack : pack_directory.reload(this.db)) {
+            if (!containsAny(pack.getIndex(), reachable)
+                    && pack_attributes.deletePackUnusedSince(this.db.getComponent(), pack.getName(), cutoff)) {
+                deleted += pack.getObjectCount();
+            }
+        }
+        pack_directory.invalidate();
+        forgetDeletedObjects();
+
+        Loggers.getLogger(this).debug("Deleted {} unreachable objects of {} in {}ms", deleted,
+                this.db.getIdentifier(), System.currentTimeMillis() - started);
+        return deleted;
+    }
+
+    /*
+     * Deletes the loose objects which are not kept and were neither stored nor reused since the
+     * cutoff, and returns how many were deleted. The loose objects are paged through by name, and
+     * each page's garbage is deleted in a transaction of its own.
+     */
+    private int sweepLooseObjects(Predicate<ObjectId> kept, Date cutoff) {
+        AssetKindObjectAttributes object_attributes = this.db.getAssetAttributesObject();
+        int deleted = 0;
+        String after = null;
+        for (;;) {
+            List<ObjectId> garbage = new ArrayList<ObjectId>();
+            int seen = 0;
+            for (Asset obj_asset : object_attributes.browseObjectAssetsAfter(this.db.getBucket(),
+                    this.db.getComponent(), after, DELETE_BATCH_SIZE)) {
+                ObjectId object_id = object_attributes.getObjectId(obj_asset);
+                if (!kept.test(object_id) && object_attributes.isUnusedSince(obj_asset, cutoff))
+                    garbage.add(object_id);
+                after = obj_asset.name();
+                seen++;
+            }
+            if (!garbage.isEmpty())
+                deleted += object_attributes.deleteObjectAssetsUnusedSince(this.db.getBucket(), this.db.getComponent(),
+                        garbage, cutoff);
+            if (seen < DELETE_BATCH_SIZE)
+                return deleted;
+        }
+    }
+
+    /*
+     * Drops this node's cached copies of objects, some of which may just have been deleted. Readers
+     * only use the cache to read objects, never to tell whether one is stored, so other nodes'
+     * caches need not be reached.
+     */
+    private void forgetDeletedObjects() {
+        ObjectCache object_cache = this.db.getObjectCache();
+        if (object_cache != null)
+            object_cache.invalidateAll();
+    }
+
+    private static boolean containsAny(PackIndex index, ObjectIdSet object_ids) {
+        for (PackIndex.MutableEntry entry : index) {
+            if (object_ids.contains(entry.toObjectId()))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean containsAll(PackIndex index, PackIndex other) {
+        for (PackIndex.MutableEntry entry : other) {
+            if (!index.hasObject(entry.toObjectId()))
+                return false;
+        }
+        return true;
+    }
+
     @Override
     public void close() {
 
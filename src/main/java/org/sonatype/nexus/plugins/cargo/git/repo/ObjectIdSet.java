@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.git.repo;
+
+import java.util.BitSet;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+/*
+ * Set of ObjectIds packed into a flat byte array with open addressing. An id takes about 27 bytes
+ * at the maximum load factor, against well over 100 bytes as an ObjectId in a HashSet, so the
+ * reachable objects of a large repository can be marked in memory. Not thread-safe.
+ */
+class ObjectIdSet
+{
+    private static final int ID_LENGTH = Constants.OBJECT_ID_LENGTH;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private byte[] ids;
+
+    private BitSet used;
+
+    private int mask;
+
+    private int size;
+
+    ObjectIdSet() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean contains(AnyObjectId object_id) {
+        for (int slot = object_id.hashCode() & this.mask; this.used.get(slot); slot = (slot + 1) & this.mask) {
+            if (object_id.compareTo(this.ids, slot * ID_LENGTH) == 0)
+                return true;
+        }
+        return false;
+    }
+
+    /* Adds the id, returning false if it was already in the set. */
+    boolean add(AnyObjectId object_id) {
+        int slot = object_id.hashCode() & this.mask;
+        for (; this.used.get(slot); slot = (slot + 1) & this.mask) {
+            if (object_id.compareTo(this.ids, slot * ID_LENGTH) == 0)
+                return false;
+        }
+        object_id.copyRawTo(this.ids, slot * ID_LENGTH);
+        this.used.set(slot);
+        this.size++;
+
+        // Keep the load factor at or below 3/4.
+        if (this.size * 4L >= (this.mask + 1L) * 3)
+            grow();
+        return true;
+    }
+
+    private void grow() {
+        byte[] old_ids = this.ids;
+        BitSet old_used = this.used;
+        allocate((this.mask + 1) * 2);
+        for (int i = old_used.nextSetBit(0); i >= 0; i = old_used.nextSetBit(i + 1)) {
+            ObjectId object_id = ObjectId.fromRaw(old_ids, i * ID_LENGTH);
+            int slot = object_id.hashCode() & this.mask;
+            while (this.used.get(slot))
+                slot = (slot + 1) & this.mask;
+            System.arraycopy(old_ids, i * ID_LENGTH, this.ids, slot * ID_LENGTH, ID_LENGTH);
+            this.used.set(slot);
+        }
+    }
+
+    private void allocate(int capacity) {
+        this.ids = new byte[capacity * ID_LENGTH];
+        this.used = new BitSet(capacity);
+        this.mask = capacity - 1;
+    }
+}
@@ -13,49 +13,143 @@
 
 package org.sonatype.nexus.plugins.cargo.git.repo;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-
-import org.sonatype.nexus.plugins.cargo.git.Constants;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
 import org.sonatype.nexus.plugins.cargo.git.assets.AssetKindObjectAttributes;
-import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.plugins.cargo.git.assets.AssetKindPackAttributes;
 import org.sonatype.nexus.repository.storage.Bucket;
 import org.sonatype.nexus.repository.storage.Component;
-import org.sonatype.nexus.repository.storage.StorageFacet;
-import org.sonatype.nexus.repository.view.payloads.TempBlob;
 
+import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.ObjectId;
 
 public class ObjectInserter
         extends org.eclipse.jgit.lib.ObjectInserter
 {
+    // Objects up to this size are hashed in memory; larger ones are spooled to disk.
+    private static final int IN_MEMORY_LIMIT = 1024 * 1024;
+
     private final Repository db;
 
     private final AssetKindObjectAttributes asset_attributes;
 
-    private final StorageFacet storage_facet;
+    private final AssetKindPackAttributes pack_attributes;
 
     private final Bucket bucket;
 
     private final Component component;
 
+    // Parsers created by newPackParser(), whose spooled packs are deleted on close().
+    private final List<PackParser> pack_parsers = new ArrayList<PackParser>();
+
     ObjectInserter(Repository db) {
         this.db = db;
         this.asset_attributes = db.getAssetAttributesObject();
-        this.storage_facet = db.getStorageFacet();
+        this.pack_attributes = db.getAssetAttributesPack();
         this.bucket = db.getBucket();
         this.component = db.getComponent();
     }
 
+    @Override
+    public ObjectId insert(int object_type, byte[] data, int off, int len) throws IOException {
+        // The id is known before anything is written, so objects that are
+        // already stored never reach the blob store.
+        ObjectId object_id = idFor(object_type, data, off, len);
+        if (!freshen(object_id)) {
+            asset_attributes.createObjectAsset(this.bucket, this.component, object_id, object_type, len,
+                    new ByteArrayInputStream(data, off, len));
+        }
+        return object_id;
+    }
+
     @Override
     public ObjectId insert(int object_type, long length, InputStream in) throws IOException {
-        Asset asset = asset_attributes.createObjectAsset(this.bucket, this.component, object_type, length, in);
-        return asset_attributes.getObjectId(asset);
+        if (length <= IN_MEMORY_LIMIT) {
+            byte[] data = new byte[(int) length];
+            IOUtils.readFully(in, data);
+            return insert(object_type, data, 0, data.length);
+        }
+
+        // Too large to hold in memory: spool it while hashing, and only store
+        // the spooled copy if the object is new.
+        Path spool = Files.createTempFile("cargo-object-", ".tmp");
+        try {
+            ObjectId object_id;
+            try (OutputStream out = Files.newOutputStream(spool)) {
+                object_id = idFor(object_type, length, new TeeInputStream(in, out));
+            }
+            if (!freshen(object_id)) {
+                try (InputStream contents = Files.newInputStream(spool)) {
+                    asset_attributes.createObjectAsset(this.bucket, this.component, object_id, object_type, length,
+                            contents);
+                }
+            }
+            return object_id;
+        }
+        finally {
+            Files.deleteIfExists(spool);
+        }
+    }
+
+    /*
+     * Returns whether an object is already stored, recording that it is being reused if it is. A
+     * garbage collection which found the object unreachable before it was reused then keeps it, as
+     * it would keep an object stored just now.
+     */
+    boolean freshen(AnyObjectId object_id) throws IOException {
+        return !freshenAll(Collections.singleton(object_id)).isEmpty();
+    }
+
+    /*
+     * Batched form of freshen(): returns which of the given objects are stored. A pack is freshened
+     * as a whole when it holds any of them; the rest are looked up loose in chunks.
+     */
+    Set<ObjectId> freshenAll(Collection<? extends AnyObjectId> object_ids) throws IOException {
+        Set<ObjectId> stored = new HashSet<ObjectId>();
+        List<AnyObjectId> unpacked = new ArrayList<AnyObjectId>(object_ids);
+        for (StoredPack pack : this.db.getPackDirectory().getPacks(this.db)) {
+            List<AnyObjectId> packed = unpacked.stream().filter(pack::has).collect(Collectors.toList());
+            // A pack which is gone has been replaced, and its objects may be
+            // loose again or in a pack that was not listed yet.
+            if (!packed.isEmpty() && this.pack_attributes.freshenPack(this.component, pack.getName())) {
+                packed.forEach(object_id -> stored.add(object_id.copy()));
+                unpacked.removeAll(packed);
+            }
+        }
+        if (!unpacked.isEmpty())
+            stored.addAll(this.asset_attributes.freshenObjectAssets(this.bucket, this.component, unpacked));
+        return stored;
     }
 
     @Override
     public void close() {
-        // Nothing to do as insert() queues all the work in the current transaction.
+        // insert() queues all the work in the current transaction; only the
+        // spooled packs of any parsers handed out are left to clean up.
+        for (PackParser parser : this.pack_parsers) {
+            try {
+                parser.release();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        this.pack_parsers.clear();
     }
 
     @Override
@@ -65,8 +159,19 @@ public class ObjectInserter
 
     @Override
     public PackParser newPackParser(InputStream in) throws IOException {
-        TempBlob packBlob = storage_facet.createTempBlob(in, Constants.OBJECT_HASHES);
-        return new PackParser(this.db, packBlob);
+        // Delta bases are read back from random offsets while the pack is
+        // resolved, so spool it to a local file that can be read positionally.
+        Path packFile = Files.createTempFile("cargo-receive-", ".pack");
+        try {
+            Files.copy(in, packFile, StandardCopyOption.REPLACE_EXISTING);
+            PackParser parser = new PackParser(this.db, packFile);
+            this.pack_parsers.add(parser);
+            return parser;
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(packFile);
+            throw e;
+        }
     }
 
     @Override
@@ -15,18 +15,22 @@ package org.sonatype.nexus.plugins.cargo.git.repo;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 import org.apache.commons.io.IOUtils;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.internal.storage.file.BitmapIndexImpl;
 import org.eclipse.jgit.lib.AbbreviatedObjectId;
 import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.BitmapIndex;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.storage.pack.PackConfig;
@@ -37,9 +41,16 @@ import org.sonatype.nexus.repository.storage.Component;
 import org.sonatype.nexus.repository.storage.StorageFacet;
 import org.sonatype.nexus.transaction.UnitOfWork;
 
+/*
+ * Reads git objects from the repository's packs first and from loose object assets second. The
+ * packs are consulted without a query; loose objects cost one query per lookup.
+ */
 public class ObjectReader
         extends org.eclipse.jgit.lib.ObjectReader
 {
+    // Matches the limit of the loose object query.
+    private static final int MAX_RESOLVE_MATCHES = 256;
+
     private final Repository db;
 
     private final AssetKindObjectAttributes asset_attributes;
@@ -52,6 +63,11 @@ public class ObjectReader
 
     private final StorageFacet storage_facet;
 
+    @Nullable
+    private final ObjectCache object_cache;
+
+    private final PackDirectory pack_directory;
+
     ObjectReader(Repository db) {
         super();
         this.db = db;
@@ -60,12 +76,26 @@ public class ObjectReader
         this.bucket = db.getBucket();
         this.component = db.getComponent();
         this.storage_facet = db.getStorageFacet();
+        this.object_cache = db.getObjectCache();
+        this.pack_directory = db.getPackDirectory();
     }
 
+    /*
+     * Unlike open(), this does not consult the object cache: a cached object may have been deleted
+     * by a garbage collection since, on this node or another.
+     */
     @Override
     public boolean has(AnyObjectId object_id, int type_hint) throws IOException {
         boolean newUnitOfWorkStarted = startNewUnitOfWorkIfNotAlreadyStarted();
         try {
+            for (StoredPack pack : this.pack_directory.getPacks(this.db)) {
+                if (pack.has(object_id)) {
+                    if (type_hint != OBJ_ANY)
+                        checkType(object_id, type_hint, pack.open(object_id).type);
+                    return true;
+                }
+            }
+
             Asset obj_asset = asset_attributes.findObjectAssetWithObjectId(bucket, component, object_id);
             if (obj_asset == null)
                 return false;
@@ -83,14 +113,26 @@ public class ObjectReader
     @Override
     public ObjectLoader open(AnyObjectId object_id, int type_hint)
             throws MissingObjectException, IncorrectObjectTypeException, IOException {
+        ObjectCache.Entry cached = getCached(object_id);
+        if (cached != null) {
+            if (type_hint != OBJ_ANY && type_hint != cached.type) {
+                throw new IncorrectObjectTypeException(object_id.toObjectId(), type_hint);
+            }
+            return new ObjectLoader.SmallObject(cached.type, cached.data);
+        }
+
         boolean newUnitOfWorkStarted = startNewUnitOfWorkIfNotAlreadyStarted();
         try {
+            StoredPack.PackedObject packed = openPacked(object_id, this.pack_directory.getPacks(this.db));
+            if (packed != null) {
+                checkType(object_id, type_hint, packed.type);
+                return new ObjectLoader.SmallObject(packed.type, packed.data);
+            }
+
             Asset obj_asset = asset_attributes.findObjectAssetWithObjectId(bucket, component, object_id);
             if (obj_asset == null) {
-                if (type_hint == OBJ_ANY)
-                    throw new MissingObjectException(object_id.copy(), JGitText.get().unknownObjectType2);
-
-                throw new MissingObjectException(object_id.toObjectId(), type_hint);
+                packed = openRepacked(object_id, type_hint);
+                return new ObjectLoader.SmallObject(packed.type, packed.data);
             }
             if (type_hint != OBJ_ANY && type_hint != asset_attributes.getObjectType(obj_asset)) {
                 throw new IncorrectObjectTypeException(object_id.toObjectId(), type_hint);
@@ -99,7 +141,11 @@ public class ObjectReader
             if (obj_asset.size() < this.pack_config.getBigFileThreshold()) {
                 ByteArrayOutputStream obj_buf = new ByteArrayOutputStream(obj_asset.size().intValue());
                 IOUtils.copy(this.asset_attributes.getContents(obj_asset), obj_buf);
-                return new ObjectLoader.SmallObject(this.asset_attributes.getObjectType(obj_asset), obj_buf.toByteArray());
+                int type = this.asset_attributes.getObjectType(obj_asset);
+                byte[] data = obj_buf.toByteArray();
+                if (this.object_cache != null)
+                    this.object_cache.put(object_id, type, data);
+                return new ObjectLoader.SmallObject(type, data);
             }
             else {
                 return new org.sonatype.nexus.plugins.cargo.git.repo.ObjectLoader(this.db, object_id, obj_asset);
@@ -109,6 +155,42 @@ public class ObjectReader
         }
     }
 
+    @Override
+    public long getObjectSize(AnyObjectId object_id, int type_hint)
+            throws MissingObjectException, IncorrectObjectTypeException, IOException {
+        ObjectCache.Entry cached = getCached(object_id);
+        if (cached != null) {
+            if (type_hint != OBJ_ANY && type_hint != cached.type) {
+                throw new IncorrectObjectTypeException(object_id.toObjectId(), type_hint);
+            }
+            return cached.data.length;
+        }
+
+        // A loose object's asset records the size, so its contents need not
+        // be read. Packed objects are small and read whole.
+        boolean newUnitOfWorkStarted = startNewUnitOfWorkIfNotAlreadyStarted();
+        try {
+            StoredPack.PackedObject packed = openPacked(object_id, this.pack_directory.getPacks(this.db));
+            if (packed != null) {
+                checkType(object_id, type_hint, packed.type);
+                return packed.data.length;
+            }
+
+            Asset obj_asset = asset_attributes.findObjectAssetWithObjectId(bucket, component, object_id);
+            if (obj_asset == null) {
+                packed = openRepacked(object_id, type_hint);
+                return packed.data.length;
+            }
+            if (type_hint != OBJ_ANY && type_hint != asset_attributes.getObjectType(obj_asset)) {
+                throw new IncorrectObjectTypeException(object_id.toObjectId(), type_hint);
+            }
+
+            return obj_asset.size();
+        } finally {
+            endUnitOfWorkIfNeeded(newUnitOfWorkStarted);
+        }
+    }
+
     @Override
     public void close() {
 
@@ -118,7 +200,10 @@ public class ObjectReader
     public Collection<ObjectId> resolve(AbbreviatedObjectId id) throws IOException {
         boolean newUnitOfWorkStarted = startNewUnitOfWorkIfNotAlreadyStarted();
         try {
-            List<ObjectId> matching_ids = new ArrayList<ObjectId>();
+            Set<ObjectId> matching_ids = new HashSet<ObjectId>();
+            for (StoredPack pack : this.pack_directory.getPacks(this.db)) {
+                pack.resolve(matching_ids, id, MAX_RESOLVE_MATCHES);
+            }
             for (Asset obj_asset : asset_attributes.browseObjectAssetByAbbreviatedObjectId(bucket, component, id)) {
                 matching_ids.add(asset_attributes.getObjectId(obj_asset));
             }
@@ -129,16 +214,92 @@ public class ObjectReader
         }
     }
 
+    /*
+     * Returns the reachability bitmaps of the newest full repack. Object counting for upload-pack
+     * then ORs the bitmaps of the wanted commits and only walks the commits made since that repack.
+     */
+    @Override
+    @Nullable
+    public BitmapIndex getBitmapIndex() throws IOException {
+        boolean newUnitOfWorkStarted = startNewUnitOfWorkIfNotAlreadyStarted();
+        try {
+            StoredPack pack = this.pack_directory.getBitmapPack(this.db);
+            return pack == null ? null : new BitmapIndexImpl(pack.getBitmapIndex());
+        } finally {
+            endUnitOfWorkIfNeeded(newUnitOfWorkStarted);
+        }
+    }
+
     @Override
     public org.eclipse.jgit.lib.ObjectReader newReader() {
         return new ObjectReader(db);
     }
 
+    /*
+     * Commits whose parents this repository does not have. The stored repository always has its
+     * whole history; squashing starts it again at a root commit rather than cutting it off. The
+     * shallow commits of a client are sent with every stateless request, and UploadPack works out
+     * the new boundary from them and the requested depth.
+     */
     @Override
     public Set<ObjectId> getShallowCommits() throws IOException {
         return Collections.emptySet();
     }
 
+    /* Reads the object from the first pack holding it. The caller must be in a unit of work. */
+    @Nullable
+    private StoredPack.PackedObject openPacked(AnyObjectId object_id, List<StoredPack> packs) throws IOException {
+        for (StoredPack pack : packs) {
+            StoredPack.PackedObject packed;
+            try {
+                packed = pack.open(object_id);
+            }
+            catch (IOException e) {
+                // A repack may have replaced the pack since the packs were
+                // listed. Its objects are in the pack which replaced it.
+                List<StoredPack> current = this.pack_directory.reload(this.db);
+                if (current.contains(pack))
+                    throw e;
+                return openPacked(object_id, current);
+            }
+            if (packed != null) {
+                if (this.object_cache != null)
+                    this.object_cache.put(object_id, packed.type, packed.data);
+                return packed;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Called when an object is neither in the known packs nor loose. A repack may have moved it into
+     * a pack that was written after the packs were last listed, so list them again before giving up.
+     */
+    private StoredPack.PackedObject openRepacked(AnyObjectId object_id, int type_hint) throws IOException {
+        StoredPack.PackedObject packed = openPacked(object_id, this.pack_directory.reload(this.db));
+        if (packed == null) {
+            if (type_hint == OBJ_ANY)
+                throw new MissingObjectException(object_id.copy(), JGitText.get().unknownObjectType2);
+
+            throw new MissingObjectException(object_id.toObjectId(), type_hint);
+        }
+        checkType(object_id, type_hint, packed.type);
+        return packed;
+    }
+
+    private static void checkType(AnyObjectId object_id, int type_hint, int type)
+            throws IncorrectObjectTypeException
+    {
+        if (type_hint != OBJ_ANY && type_hint != type) {
+            throw new IncorrectObjectTypeException(object_id.toObjectId(), type_hint);
+        }
+    }
+
+    @Nullable
+    private ObjectCache.Entry getCached(AnyObjectId object_id) {
+        return this.object_cache != null ? this.object_cache.get(object_id) : null;
+    }
+
     private boolean startNewUnitOfWorkIfNotAlreadyStarted() {
         UnitOfWork old = UnitOfWork.pause();
         if (old == null) {
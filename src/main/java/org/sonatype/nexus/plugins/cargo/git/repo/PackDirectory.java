@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.git.repo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.sonatype.nexus.plugins.cargo.git.assets.AssetKindPackAttributes;
+import org.sonatype.nexus.repository.storage.Asset;
+
+/*
+ * The packs of a single git repository. Pack assets are listed again at most once per refresh
+ * interval; a pack's index is loaded once and kept for as long as the pack exists, so a lookup in
+ * the packs costs no query at all between refreshes.
+ */
+public class PackDirectory
+{
+    private final long refreshNanos;
+
+    private volatile List<StoredPack> packs = Collections.emptyList();
+
+    private volatile long loadedAt;
+
+    private volatile boolean loaded;
+
+    public PackDirectory(long refreshMillis) {
+        this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, refreshMillis));
+    }
+
+    /* Returns the packs, listing them again if the refresh interval has passed. */
+    List<StoredPack> getPacks(Repository db) throws IOException {
+        if (!this.loaded || System.nanoTime() - this.loadedAt >= this.refreshNanos)
+            return reload(db);
+        return this.packs;
+    }
+
+    /*
+     * Lists the pack assets again. Objects are only ever moved from loose storage into a pack, so a
+     * reader that cannot find an object reloads before reporting it missing.
+     */
+    synchronized List<StoredPack> reload(Repository db) throws IOException {
+        AssetKindPackAttributes pack_attributes = db.getAssetAttributesPack();
+        Map<String, StoredPack> known = new HashMap<String, StoredPack>();
+        for (StoredPack pack : this.packs) {
+            known.put(pack.getName(), pack);
+        }
+
+        List<StoredPack> current = new ArrayList<StoredPack>();
+        for (Asset pack_asset : pack_attributes.findPackAssets(db.getComponent())) {
+            String name = pack_attributes.getPackName(pack_asset);
+            StoredPack pack = known.remove(name);
+            if (pack == null)
+                pack = load(pack_attributes, db, name, pack_asset);
+            current.add(pack);
+        }
+
+        this.packs = Collections.unmodifiableList(current);
+        this.loadedAt = System.nanoTime();
+        this.loaded = true;
+
+        // Whatever is left was deleted since the last listing.
+        close(known.values());
+        return this.packs;
+    }
+
+    /*
+     * Returns the pack with reachability bitmaps holding the most objects, or null if no pack has
+     * bitmaps. A repack replaces the previous bitmapped pack, so there is usually only one.
+     */
+    @Nullable
+    StoredPack getBitmapPack(Repository db) throws IOException {
+        StoredPack bitmap_pack = null;
+        for (StoredPack pack : getPacks(db)) {
+            if (pack.hasBitmap() && (bitmap_pack == null || pack.getObjectCount() > bitmap_pack.getObjectCount()))
+                bitmap_pack = pack;
+        }
+        return bitmap_pack;
+    }
+
+    /* Makes the next lookup list the packs again. */
+    public void invalidate() {
+        this.loaded = false;
+    }
+
+    /* Drops all packs and their local copies. */
+    public synchronized void close() throws IOException {
+        List<StoredPack> packs = this.packs;
+        this.packs = Collections.emptyList();
+        this.loaded = false;
+        close(packs);
+    }
+
+    private static void close(Iterable<StoredPack> packs) throws IOException {
+        IOException failure = null;
+        for (StoredPack pack : packs) {
+            try {
+                pack.close();
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private static StoredPack load(AssetKindPackAttributes pack_attributes,
+                                   Repository db,
+                                   String name,
+                                   Asset pack_asset) throws IOException
+    {
+        Asset index_asset = pack_attributes.findPackIndexAsset(db.getComponent(), name);
+        InputStream contents = index_asset == null ? null : pack_attributes.getContents(index_asset);
+        if (contents == null)
+            throw new IOException("Pack " + name + " has no index");
+
+        try (InputStream in = contents) {
+            return new StoredPack(pack_attributes, db.getComponent(), name, pack_asset, PackIndex.read(in));
+        }
+    }
+}
@@ -15,31 +15,39 @@ package org.sonatype.nexus.plugins.cargo.git.repo;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 import java.util.zip.CRC32;
 import java.util.zip.InflaterInputStream;
 
-import org.sonatype.nexus.repository.view.payloads.TempBlob;
-
 import org.eclipse.jgit.internal.storage.file.PackLock;
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.Constants;
-import org.eclipse.jgit.lib.ObjectInserter;
-import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.transport.PackedObjectInfo;
 
 public class PackParser
         extends org.eclipse.jgit.transport.PackParser
 {
-    private final TempBlob pack_blob;
+    private final Path pack_file;
+
+    private final FileChannel pack_channel;
 
     private InputStream pack_stream;
 
     private final ObjectInserter inserter;
 
-    private final ObjectReader reader;
+    /** Objects inserted while the pack was parsed. */
+    private final Set<ObjectId> inflated = new HashSet<ObjectId>();
 
     /** CRC-32 computation for objects that are appended onto the pack. */
     private final CRC32 crc = new CRC32();
@@ -47,32 +55,59 @@ public class PackParser
     /** Checksum of the entire pack file. */
     private final MessageDigest packDigest = Constants.newMessageDigest();
 
-    PackParser(Repository db, TempBlob pack_blob) {
-        super(db.getObjectDatabase(), pack_blob.get());
-        this.inserter = db.newObjectInserter();
-        this.reader = db.newObjectReader();
-        this.pack_blob = pack_blob;
-        this.pack_stream = pack_blob.get();
+    PackParser(Repository db, Path pack_file) throws IOException {
+        this(db, pack_file, FileChannel.open(pack_file, StandardOpenOption.READ));
+    }
+
+    private PackParser(Repository db, Path pack_file, FileChannel pack_channel) {
+        super(db.getObjectDatabase(), new PositionalInputStream(pack_channel, 0));
+        this.inserter = new ObjectInserter(db);
+        this.pack_file = pack_file;
+        this.pack_channel = pack_channel;
+        this.pack_stream = new PositionalInputStream(pack_channel, 0);
     }
 
     @Override
     public PackLock parse(ProgressMonitor receiving, ProgressMonitor resolving) throws IOException {
-        super.parse(receiving, resolving);
-
-        // For any object that wasn't inflated during pack parsing, do so now so
-        // all objects from the pack are inserted into the database.
-        for (PackedObjectInfo info : this.getSortedObjectList(null)) {
-            if (!this.reader.has(info)) {
-                InputStream packed_obj = pack_blob.get();
-                packed_obj.skip(info.getOffset());
-                PackedObjectHeader header = new PackedObjectHeader(packed_obj);
-                inserter.insert(header.getType(), header.getObjectSize(), new InflaterInputStream(packed_obj));
+        try {
+            super.parse(receiving, resolving);
+
+            // For any object that wasn't inflated during pack parsing, do so now so
+            // all objects from the pack are inserted into the database. Those
+            // already stored are freshened instead, so a concurrent garbage
+            // collection does not delete them before the refs point at them.
+            List<PackedObjectInfo> objects = this.getSortedObjectList(null).stream()
+                    .filter(info -> !this.inflated.contains(info)).collect(Collectors.toList());
+            Set<ObjectId> stored = this.inserter.freshenAll(objects);
+            for (PackedObjectInfo info : objects) {
+                if (!stored.contains(info)) {
+                    InputStream packed_obj = new PositionalInputStream(this.pack_channel, info.getOffset());
+                    PackedObjectHeader header = new PackedObjectHeader(packed_obj);
+                    inserter.insert(header.getType(), header.getObjectSize(), new InflaterInputStream(packed_obj));
+                }
             }
         }
+        finally {
+            release();
+        }
 
         return null;
     }
 
+    /*
+     * Closes and deletes the spooled pack. Also called by the ObjectInserter that created this
+     * parser when it is closed, so the spool does not outlive a receive that never got as far as
+     * parse().
+     */
+    void release() throws IOException {
+        try {
+            this.pack_channel.close();
+        }
+        finally {
+            Files.deleteIfExists(this.pack_file);
+        }
+    }
+
     @Override
     protected void onPackHeader(long objCount) throws IOException {
     }
@@ -112,7 +147,7 @@ public class PackParser
         // Small objects and deltas will be fully inflated and resolved as the
         // pack is read. Since that work is already done for us, insert the
         // inflated object into the database.
-        this.inserter.insert(type_code, data);
+        this.inflated.add(this.inserter.insert(type_code, data));
     }
 
     @Override
@@ -141,16 +176,14 @@ public class PackParser
     @Override
     protected ObjectTypeAndSize seekDatabase(PackedObjectInfo obj, ObjectTypeAndSize info) throws IOException {
         crc.reset();
-        this.pack_stream = this.pack_blob.get();
-        this.pack_stream.skip(obj.getOffset());
+        this.pack_stream = new PositionalInputStream(this.pack_channel, obj.getOffset());
         return readObjectHeader(info);
     }
 
     @Override
     protected ObjectTypeAndSize seekDatabase(UnresolvedDelta delta, ObjectTypeAndSize info) throws IOException {
         crc.reset();
-        this.pack_stream = this.pack_blob.get();
-        this.pack_stream.skip(delta.getOffset());
+        this.pack_stream = new PositionalInputStream(this.pack_channel, delta.getOffset());
         return readObjectHeader(info);
     }
 
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.git.repo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Reads a pack file from a given offset without moving the channel's position, so seeking to a
+ * delta base costs nothing regardless of where it is in the pack, and any number of streams can
+ * read the same channel at once. Object headers are read a byte at a time, so small reads are
+ * served from a buffer filled by one positional read. Closing the stream leaves the channel open.
+ */
+class PositionalInputStream
+        extends InputStream
+{
+    private static final int BUFFER_SIZE = 8192;
+
+    private final FileChannel channel;
+
+    // Channel position of the byte after the last one buffered.
+    private long position;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private int buffer_pos;
+
+    private int buffer_len;
+
+    PositionalInputStream(FileChannel channel, long position) {
+        this.channel = channel;
+        this.position = position;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (this.buffer_pos == this.buffer_len && fill() < 0)
+            return -1;
+        return this.buffer[this.buffer_pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] dst, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+
+        int buffered = this.buffer_len - this.buffer_pos;
+        if (buffered > 0) {
+            int n = Math.min(buffered, len);
+            System.arraycopy(this.buffer, this.buffer_pos, dst, off, n);
+            this.buffer_pos += n;
+            return n;
+        }
+
+        // Large reads go straight to the caller's array.
+        if (len >= BUFFER_SIZE) {
+            int n = this.channel.read(ByteBuffer.wrap(dst, off, len), this.position);
+            if (n > 0)
+                this.position += n;
+            return n;
+        }
+
+        if (fill() < 0)
+            return -1;
+        return read(dst, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0)
+            return 0;
+
+        int buffered = this.buffer_len - this.buffer_pos;
+        if (n <= buffered) {
+            this.buffer_pos += (int) n;
+            return n;
+        }
+
+        long skipped = buffered + Math.max(0, Math.min(n - buffered, this.channel.size() - this.position));
+        this.position += skipped - buffered;
+        this.buffer_pos = this.buffer_len = 0;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return this.buffer_len - this.buffer_pos;
+    }
+
+    private int fill() throws IOException {
+        int n = this.channel.read(ByteBuffer.wrap(this.buffer), this.position);
+        this.buffer_pos = 0;
+        this.buffer_len = Math.max(n, 0);
+        if (n > 0)
+            this.position += n;
+        return n;
+    }
+}
@@ -15,6 +15,9 @@ package org.sonatype.nexus.plugins.cargo.git.repo;
 
 import java.io.IOException;
 
+import org.eclipse.jgit.events.RefsChangedEvent;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectIdRef;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.SymbolicRef;
@@ -68,10 +71,15 @@ public class RefUpdate
         if (deref)
             dstRef = dstRef.getLeaf();
 
-        if (dstRef.isSymbolic())
+        // The Ref given to the constructor may be stale. Re-read the stored
+        // value; doUpdate() checks it again before writing.
+        Asset asset = asset_attributes.findRefAssetWithName(this.bucket, this.component, dstRef.getName());
+        Ref stored = asset == null ? null : asset_attributes.getRef(this.bucket, this.component, asset);
+
+        if (stored == null || stored.isSymbolic())
             setOldObjectId(null);
         else
-            setOldObjectId(dstRef.getObjectId());
+            setOldObjectId(stored.getObjectId());
 
         return true;
     }
@@ -106,17 +114,32 @@ public class RefUpdate
             newRef = new ObjectIdRef.PeeledNonTag(Ref.Storage.LOOSE, dstRef.getName(), getNewObjectId());
         }
 
+        // Compare-and-swap: re-read the ref in the transaction that writes it;
+        // it must still hold the value tryLock() saw, otherwise another writer
+        // got there first. A writer committing after this read changes the
+        // record version, and the storage layer then rejects this commit.
         StorageTx tx = UnitOfWork.currentTx();
         Asset asset = asset_attributes.findRefAssetWithName(this.bucket, this.component, dstRef.getName());
+        if (!isStoredValue(asset, getOldObjectId()))
+            return Result.LOCK_FAILURE;
+
         if (asset == null) {
             asset = asset_attributes.createRefAsset(this.bucket, this.component, dstRef.getName());
         }
         asset_attributes.setRef(asset, newRef);
         tx.saveAsset(asset);
+        this.db.fireEvent(new RefsChangedEvent());
 
         return desired_result;
     }
 
+    private boolean isStoredValue(Asset asset, ObjectId expected) {
+        Ref stored = asset == null ? null : asset_attributes.getRef(this.bucket, this.component, asset);
+        ObjectId storedId = stored == null || stored.isSymbolic() ? null : stored.getObjectId();
+        return AnyObjectId.equals(storedId != null ? storedId : ObjectId.zeroId(),
+                expected != null ? expected : ObjectId.zeroId());
+    }
+
     @Override
     @TransactionalStoreMetadata
     protected Result doLink(String target) throws IOException {
@@ -130,6 +153,7 @@ public class RefUpdate
         }
         asset_attributes.setRef(asset, newRef);
         tx.saveAsset(asset);
+        this.db.fireEvent(new RefsChangedEvent());
 
         if (dstRef.getStorage() == Ref.Storage.NEW) {
             return Result.NEW;
@@ -148,6 +172,7 @@ public class RefUpdate
             return Result.REJECTED_MISSING_OBJECT;
 
         tx.deleteAsset(asset);
+        this.db.fireEvent(new RefsChangedEvent());
 
         return desired_result;
     }
@@ -15,6 +15,7 @@ package org.sonatype.nexus.plugins.cargo.git.repo;
 
 import java.io.IOException;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 
@@ -23,6 +24,7 @@ import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ReflogReader;
 import org.sonatype.nexus.plugins.cargo.git.assets.AssetKindConfigAttributes;
 import org.sonatype.nexus.plugins.cargo.git.assets.AssetKindObjectAttributes;
+import org.sonatype.nexus.plugins.cargo.git.assets.AssetKindPackAttributes;
 import org.sonatype.nexus.plugins.cargo.git.assets.AssetKindRefAttributes;
 import org.sonatype.nexus.repository.storage.Bucket;
 import org.sonatype.nexus.repository.storage.Component;
@@ -50,21 +52,31 @@ public class Repository
 
         private final AssetKindRefAttributes asset_attributes_ref;
 
+        private final AssetKindPackAttributes asset_attributes_pack;
+
         private StorageFacet storage_facet;
 
         private Bucket bucket;
 
         private Component component;
 
+        private ObjectCache object_cache;
+
+        private PackDirectory pack_directory;
+
+        private boolean protocol_v2;
+
         @Inject
         public Builder(AssetKindConfigAttributes asset_attributes_config,
                        AssetKindObjectAttributes asset_attributes_object,
-                       AssetKindRefAttributes asset_attributes_ref)
+                       AssetKindRefAttributes asset_attributes_ref,
+                       AssetKindPackAttributes asset_attributes_pack)
         {
             setBare();
             this.asset_attributes_config = asset_attributes_config;
             this.asset_attributes_object = asset_attributes_object;
             this.asset_attributes_ref = asset_attributes_ref;
+            this.asset_attributes_pack = asset_attributes_pack;
         }
 
         public Builder setStorageFacet(StorageFacet storage_facet) {
@@ -78,6 +90,21 @@ public class Repository
             return self();
         }
 
+        public Builder setObjectCache(ObjectCache object_cache) {
+            this.object_cache = object_cache;
+            return self();
+        }
+
+        public Builder setPackDirectory(PackDirectory pack_directory) {
+            this.pack_directory = pack_directory;
+            return self();
+        }
+
+        public Builder setProtocolV2(boolean protocol_v2) {
+            this.protocol_v2 = protocol_v2;
+            return self();
+        }
+
         @Override
         public Repository build() throws IOException {
 
@@ -91,6 +118,8 @@ public class Repository
 
     private final AssetKindRefAttributes asset_attributes_ref;
 
+    private final AssetKindPackAttributes asset_attributes_pack;
+
     private final StorageFacet storage_facet;
 
     private final StoredConfig config;
@@ -103,16 +132,23 @@ public class Repository
 
     Component component;
 
+    private final ObjectCache object_cache;
+
+    private final PackDirectory pack_directory;
+
     public Repository(Builder builder) {
         super(builder);
         this.asset_attributes_config = builder.asset_attributes_config;
         this.asset_attributes_object = builder.asset_attributes_object;
         this.asset_attributes_ref = builder.asset_attributes_ref;
+        this.asset_attributes_pack = builder.asset_attributes_pack;
         this.storage_facet = builder.storage_facet;
         this.bucket = builder.bucket;
         this.component = builder.component;
+        this.object_cache = builder.object_cache;
+        this.pack_directory = builder.pack_directory != null ? builder.pack_directory : new PackDirectory(0);
 
-        this.config = new StoredConfig(this);
+        this.config = new StoredConfig(this, builder.protocol_v2);
         this.obj_db = new ObjectDatabase(this);
         this.ref_db = new RefDatabase(this);
     }
@@ -129,6 +165,10 @@ public class Repository
         return this.asset_attributes_ref;
     }
 
+    AssetKindPackAttributes getAssetAttributesPack() {
+        return this.asset_attributes_pack;
+    }
+
     StorageFacet getStorageFacet() {
         return this.storage_facet;
     }
@@ -141,6 +181,15 @@ public class Repository
         return this.component;
     }
 
+    @Nullable
+    ObjectCache getObjectCache() {
+        return this.object_cache;
+    }
+
+    PackDirectory getPackDirectory() {
+        return this.pack_directory;
+    }
+
     @Override
     public void create(boolean bare) throws IOException {
         String master = Constants.R_HEADS + Constants.MASTER;
@@ -149,6 +198,12 @@ public class Repository
             throw new IOException(result.name());
     }
 
+    @Override
+    public String getIdentifier() {
+        // There is no directory; the component name is unique within the bucket.
+        return this.component.name();
+    }
+
     @Override
     public StoredConfig getConfig() {
         return this.config;
@@ -18,6 +18,7 @@ import java.nio.charset.StandardCharsets;
 
 import org.apache.commons.io.IOUtils;
 import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Config;
 import org.sonatype.nexus.plugins.cargo.git.assets.AssetKindConfigAttributes;
 import org.sonatype.nexus.repository.storage.Asset;
 import org.sonatype.nexus.repository.storage.Bucket;
@@ -32,13 +33,26 @@ public class StoredConfig
 
     private final Component repo_component;
 
-    StoredConfig(Repository db) {
-        super();
+    StoredConfig(Repository db, boolean protocol_v2) {
+        super(defaults(protocol_v2));
         this.asset_attributes = db.getAssetAttributesConfig();
         this.repo_bucket = db.getBucket();
         this.repo_component = db.getComponent();
     }
 
+    /*
+     * Settings in effect unless the stored config overrides them. Protocol v2 is what lets clients
+     * ask for shallow fetches by date (deepen-since) or by excluded ref (deepen-not), but its
+     * fetches are always run by UploadPack, so it is only enabled on request. Even then it is only
+     * used for clients which ask for it.
+     */
+    private static Config defaults(boolean protocol_v2) {
+        Config config = new Config();
+        if (protocol_v2)
+            config.setInt("protocol", null, "version", 2);
+        return config;
+    }
+
     @Override
     public void save() throws IOException {
         Asset asset = asset_attributes.findConfigAsset(this.repo_bucket, this.repo_component);
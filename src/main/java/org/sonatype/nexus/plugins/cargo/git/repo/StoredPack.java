@@ -0,0 +1,290 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.git.repo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.ByteStreams;
+
+import org.eclipse.jgit.errors.CorruptObjectException;
+import org.eclipse.jgit.internal.storage.file.PackBitmapIndex;
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.internal.storage.file.PackReverseIndex;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.util.BinaryDelta;
+import org.sonatype.nexus.plugins.cargo.git.assets.AssetKindPackAttributes;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.storage.Component;
+
+/*
+ * A pack stored as a blob, together with its index. The index is kept in memory. The pack is
+ * copied from the blob store to a local file the first time an object is read from it, and every
+ * object is then read from that file at its offset. Deltas are resolved against bases in the same
+ * pack, as the packs written by ObjectDatabase are never thin.
+ */
+class StoredPack
+{
+    static class PackedObject
+    {
+        final int type;
+
+        final byte[] data;
+
+        PackedObject(int type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    // Resolved delta bases, by offset. Delta chains usually share their
+    // first few bases, so a small cache saves most of the re-reads.
+    private static final long DELTA_BASE_CACHE_BYTES = 4 * 1024 * 1024;
+
+    private final AssetKindPackAttributes pack_attributes;
+
+    private final Component component;
+
+    private final String name;
+
+    private final Asset pack_asset;
+
+    private final PackIndex index;
+
+    private final Cache<Long, PackedObject> delta_bases;
+
+    private final boolean has_bitmap;
+
+    // Loaded on first use, as only clones and fetches need it.
+    private volatile PackBitmapIndex bitmap;
+
+    // Local copy of the pack, made on first use.
+    private volatile FileChannel spool;
+
+    private Path spool_file;
+
+    private boolean closed;
+
+    StoredPack(AssetKindPackAttributes pack_attributes,
+               Component component,
+               String name,
+               Asset pack_asset,
+               PackIndex index)
+    {
+        this.pack_attributes = pack_attributes;
+        this.component = component;
+        this.name = name;
+        this.pack_asset = pack_asset;
+        this.index = index;
+        this.has_bitmap = pack_attributes.hasBitmap(pack_asset);
+        this.delta_bases = CacheBuilder.newBuilder().maximumWeight(DELTA_BASE_CACHE_BYTES)
+                .weigher((Long key, PackedObject value) -> value.data.length).build();
+    }
+
+    String getName() {
+        return this.name;
+    }
+
+    long getObjectCount() {
+        return this.index.getObjectCount();
+    }
+
+    PackIndex getIndex() {
+        return this.index;
+    }
+
+    boolean hasBitmap() {
+        return this.has_bitmap;
+    }
+
+    /* Returns the reachability bitmaps of this pack. The caller must be in a unit of work. */
+    PackBitmapIndex getBitmapIndex() throws IOException {
+        PackBitmapIndex bitmap = this.bitmap;
+        if (bitmap == null) {
+            synchronized (this) {
+                bitmap = this.bitmap;
+                if (bitmap == null) {
+                    Asset bitmap_asset = this.pack_attributes.findPackBitmapAsset(this.component, this.name);
+                    InputStream contents =
+                            bitmap_asset == null ? null : this.pack_attributes.getContents(bitmap_asset);
+                    if (contents == null)
+                        throw new IOException("Pack " + this.name + " has no bitmap index");
+
+                    try (InputStream in = contents) {
+                        bitmap = PackBitmapIndex.read(in, this.index, new PackReverseIndex(this.index));
+                    }
+                    this.bitmap = bitmap;
+                }
+            }
+        }
+        return bitmap;
+    }
+
+    boolean has(AnyObjectId object_id) {
+        return this.index.hasObject(object_id);
+    }
+
+    void resolve(Set<ObjectId> matches, AbbreviatedObjectId object_id, int limit) throws IOException {
+        this.index.resolve(matches, object_id, limit);
+    }
+
+    /* Returns the object, or null if it is not in this pack. The caller must be in a unit of work. */
+    @Nullable
+    PackedObject open(AnyObjectId object_id) throws IOException {
+        long offset = this.index.findOffset(object_id);
+        return offset < 0 ? null : read(offset);
+    }
+
+    private PackedObject read(long offset) throws IOException {
+        long base_offset;
+        byte[] delta;
+        try (InputStream in = openAt(offset)) {
+            PackedObjectHeader header = new PackedObjectHeader(in);
+            switch (header.getType()) {
+            case Constants.OBJ_COMMIT:
+            case Constants.OBJ_TREE:
+            case Constants.OBJ_BLOB:
+            case Constants.OBJ_TAG:
+                return new PackedObject(header.getType(), inflate(in, header.getObjectSize()));
+
+            case Constants.OBJ_OFS_DELTA: {
+                int c = readByte(in);
+                long distance = c & 0x7f;
+                while ((c & 0x80) != 0) {
+                    c = readByte(in);
+                    distance = ((distance + 1) << 7) + (c & 0x7f);
+                }
+                base_offset = offset - distance;
+                delta = inflate(in, header.getObjectSize());
+                break;
+            }
+
+            case Constants.OBJ_REF_DELTA: {
+                byte[] base_id = new byte[Constants.OBJECT_ID_LENGTH];
+                ByteStreams.readFully(in, base_id);
+                base_offset = this.index.findOffset(ObjectId.fromRaw(base_id));
+                if (base_offset < 0)
+                    throw new CorruptObjectException("Delta base " + ObjectId.fromRaw(base_id).name() + " of object at "
+                            + offset + " is not in " + this.name);
+                delta = inflate(in, header.getObjectSize());
+                break;
+            }
+
+            default:
+                throw new CorruptObjectException("Unknown object type " + header.getType() + " at " + offset + " in "
+                        + this.name);
+            }
+        }
+
+        // The stream is closed before the base is read, so a long delta
+        // chain holds only one blob stream open at a time.
+        PackedObject base = this.delta_bases.getIfPresent(base_offset);
+        if (base == null) {
+            base = read(base_offset);
+            this.delta_bases.put(base_offset, base);
+        }
+        return new PackedObject(base.type, BinaryDelta.apply(base.data, delta));
+    }
+
+    private InputStream openAt(long offset) throws IOException {
+        return new PositionalInputStream(getSpool(), offset);
+    }
+
+    private FileChannel getSpool() throws IOException {
+        FileChannel spool = this.spool;
+        if (spool == null) {
+            synchronized (this) {
+                spool = this.spool;
+                if (spool == null) {
+                    if (this.closed)
+                        throw new IOException("Pack " + this.name + " is no longer in use");
+
+                    InputStream contents = this.pack_attributes.getContents(this.pack_asset);
+                    if (contents == null)
+                        throw new IOException("Pack " + this.name + " has no blob");
+
+                    Path file = Files.createTempFile("cargo-pack-", ".pack");
+                    try (InputStream in = contents) {
+                        Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+                        spool = FileChannel.open(file, StandardOpenOption.READ);
+                    }
+                    catch (IOException | RuntimeException e) {
+                        Files.deleteIfExists(file);
+                        throw e;
+                    }
+                    this.spool_file = file;
+                    this.spool = spool;
+                }
+            }
+        }
+        return spool;
+    }
+
+    /*
+     * Deletes the local copy of the pack. Called once the pack is no longer listed; a reader still
+     * using it fails with an IOException and looks the object up again.
+     */
+    synchronized void close() throws IOException {
+        this.closed = true;
+        FileChannel spool = this.spool;
+        this.spool = null;
+        if (spool == null)
+            return;
+        try {
+            spool.close();
+        }
+        finally {
+            Files.deleteIfExists(this.spool_file);
+            this.spool_file = null;
+        }
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int c = in.read();
+        if (c < 0)
+            throw new EOFException();
+        return c;
+    }
+
+    private static byte[] inflate(InputStream in, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Packed object of " + size + " bytes is too large");
+
+        Inflater inflater = new Inflater();
+        try {
+            byte[] data = new byte[(int) size];
+            ByteStreams.readFully(new InflaterInputStream(in, inflater), data);
+            return data;
+        }
+        finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.group;
+
+import javax.annotation.Nonnull;
+import javax.inject.Named;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.repository.http.HttpResponses;
+import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.Handler;
+import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher;
+
+import com.google.common.base.Preconditions;
+
+public final class CargoGroupHandlers
+{
+    /**
+     * Serves a sparse index file merged from all members of the group. Requires a TokenMatcher
+     * that provides the following tokens: - path: Path of the file relative to the index root.
+     * Returns: HttpResponses.ok if any member has the file, HttpResponses.notFound otherwise.
+     */
+    @Named
+    public static class MergedIndexFile
+            extends ComponentSupport
+            implements Handler
+    {
+        @Override
+        public Response handle(@Nonnull final Context context) throws Exception {
+            TokenMatcher.State state = context.getAttributes().require(TokenMatcher.State.class);
+            String path = state.getTokens().get("path");
+
+            Preconditions.checkNotNull(path, "Index file handler called without a 'path' token");
+
+            Content content = context.getRepository().facet(CargoGroupIndexFacet.class).getIndexFile(context, path);
+            if (content != null) {
+                return HttpResponses.ok(content);
+            }
+            else {
+                return HttpResponses.notFound("Index file '" + path + "' not found");
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.group;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.subject.Subject;
+
+import org.sonatype.nexus.plugins.cargo.registry.assets.AssetKind;
+import org.sonatype.nexus.repository.FacetSupport;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.group.GroupFacet;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.storage.AssetEntityAdapter;
+import org.sonatype.nexus.repository.storage.AssetEvent;
+import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.ContentTypes;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.repository.view.ViewFacet;
+import org.sonatype.nexus.repository.view.payloads.BytesPayload;
+
+/*
+ * Serves the sparse index of a Cargo group as the union of its members' index files. A file is
+ * requested from all members at once and the lines are merged by version, with the first member
+ * in group order winning when several publish the same version. Merged files are kept in memory
+ * until a member's index changes, and for at most the configured TTL. A member that fails or does
+ * not answer in time is left out, and the merged file is not cached.
+ */
+@Named
+public class CargoGroupIndexFacet
+        extends FacetSupport
+{
+    private static class MergedFile
+    {
+        // Empty when no member has the file.
+        final byte[] data;
+
+        // False when a member failed, so the file may be missing its versions.
+        final boolean complete;
+
+        MergedFile(byte[] data, boolean complete) {
+            this.data = data;
+            this.complete = complete;
+        }
+    }
+
+    private static final String INDEX_ASSET_PREFIX = "index/";
+
+    private final Cache<String, MergedFile> mergedFiles;
+
+    private final int memberThreads;
+
+    private final long memberTimeoutMillis;
+
+    private ExecutorService memberLookups;
+
+    @Inject
+    public CargoGroupIndexFacet(@Named("${nexus.cargo.group.indexTtlSeconds:-300}") long indexTtlSeconds,
+                                @Named("${nexus.cargo.group.indexCacheSize:-10000}") long indexCacheSize,
+                                @Named("${nexus.cargo.group.memberThreads:-8}") int memberThreads,
+                                @Named("${nexus.cargo.group.memberTimeoutSeconds:-30}") long memberTimeoutSeconds)
+    {
+        this.mergedFiles = CacheBuilder.newBuilder().maximumSize(indexCacheSize)
+                .expireAfterWrite(indexTtlSeconds, TimeUnit.SECONDS).build();
+        this.memberThreads = Math.max(1, memberThreads);
+        this.memberTimeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(1, memberTimeoutSeconds));
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        this.memberLookups = Executors.newFixedThreadPool(this.memberThreads,
+                new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("cargo-group-" + getRepository().getName() + "-%d").build());
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        this.memberLookups.shutdownNow();
+        this.memberLookups = null;
+        this.mergedFiles.invalidateAll();
+    }
+
+    /*
+     * Returns the merged index file for the given path, or null if no member has it. The request
+     * is dispatched to the members as is, under the group's authorization in context.
+     */
+    @Nullable
+    public Content getIndexFile(Context context, String path) throws Exception {
+        MergedFile merged;
+        try {
+            // Concurrent requests for the same file wait for a single merge.
+            merged = this.mergedFiles.get(path, () -> mergeIndexFile(context));
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+        if (!merged.complete)
+            this.mergedFiles.asMap().remove(path, merged);
+        if (merged.data.length == 0)
+            return null;
+
+        Content content = new Content(new BytesPayload(merged.data, ContentTypes.TEXT_PLAIN));
+        content.getAttributes().set(Content.CONTENT_ETAG, Hashing.sha1().hashBytes(merged.data).toString());
+        return content;
+    }
+
+    @Subscribe
+    public void onMemberAssetEvent(AssetEvent event) {
+        if (!facet(GroupFacet.class).member(event.getRepositoryName()))
+            return;
+
+        Asset asset = event.getAsset();
+        Object assetKind = asset.attributes().get(AssetEntityAdapter.P_ASSET_KIND);
+        if (AssetKind.INDEX.name().equals(assetKind) && asset.name().startsWith(INDEX_ASSET_PREFIX)) {
+            // A proxy member cached or revalidated a single file.
+            this.mergedFiles.invalidate(asset.name().substring(INDEX_ASSET_PREFIX.length()));
+        }
+        else if (org.sonatype.nexus.plugins.cargo.git.assets.AssetKind.REF.name().equals(assetKind)) {
+            // A hosted member committed to its git index, which may touch any file.
+            this.mergedFiles.invalidateAll();
+        }
+    }
+
+    private MergedFile mergeIndexFile(Context context) throws Exception {
+        List<Repository> members = facet(GroupFacet.class).members();
+        Subject subject = SecurityUtils.getSubject();
+        List<Future<byte[]>> lookups = new ArrayList<Future<byte[]>>(members.size());
+        for (Repository member : members)
+            lookups.add(this.memberLookups.submit(subject.associateWith(() -> readMemberFile(member, context))));
+
+        // All members share one deadline, so a slow member cannot hold the
+        // request for longer than the timeout.
+        long deadline = System.currentTimeMillis() + this.memberTimeoutMillis;
+        boolean complete = true;
+        Map<String, String> versions = new LinkedHashMap<String, String>();
+        for (int i = 0; i < members.size(); i++) {
+            Repository member = members.get(i);
+            byte[] file;
+            try {
+                file = lookups.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+            catch (ExecutionException e) {
+                log.warn("Failed to read {} from member {}", context.getRequest().getPath(), member.getName(),
+                        e.getCause());
+                complete = false;
+                continue;
+            }
+            catch (TimeoutException e) {
+                log.warn("Timed out reading {} from member {}", context.getRequest().getPath(), member.getName());
+                lookups.get(i).cancel(true);
+                complete = false;
+                continue;
+            }
+            if (file == null)
+                continue;
+
+            String memberIndexUrl = member.getUrl() + "/index";
+            for (String line : new String(file, StandardCharsets.UTF_8).split("\n")) {
+                if (line.isEmpty())
+                    continue;
+
+                JsonObject entry = parseEntry(line);
+                if (entry == null) {
+                    // Kept as is, keyed by itself.
+                    versions.putIfAbsent(line, line);
+                    continue;
+                }
+                JsonElement vers = entry.get("vers");
+                String version = vers != null && vers.isJsonPrimitive() ? vers.getAsString() : line;
+                if (!versions.containsKey(version))
+                    versions.put(version, dropOwnRegistry(entry, memberIndexUrl) ? entry.toString() : line);
+            }
+        }
+
+        StringBuilder merged = new StringBuilder();
+        for (String line : versions.values())
+            merged.append(line).append('\n');
+        return new MergedFile(merged.toString().getBytes(StandardCharsets.UTF_8), complete);
+    }
+
+    @Nullable
+    private static byte[] readMemberFile(Repository member, Context context) throws Exception {
+        Response response = member.facet(ViewFacet.class).dispatch(context.getRequest(), context);
+        if (!response.getStatus().isSuccessful() || response.getPayload() == null)
+            return null;
+        try (InputStream in = response.getPayload().openInputStream()) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    @Nullable
+    private static JsonObject parseEntry(String line) {
+        try {
+            JsonElement entry = new JsonParser().parse(line);
+            return entry.isJsonObject() ? entry.getAsJsonObject() : null;
+        }
+        catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /*
+     * A hosted member names itself as the registry of dependencies published to it. Served by the
+     * group, those dependencies come from the group, which an absent registry means. Returns true
+     * if the entry was changed.
+     */
+    private static boolean dropOwnRegistry(JsonObject entry, String memberIndexUrl) {
+        JsonElement deps = entry.get("deps");
+        if (deps == null || !deps.isJsonArray())
+            return false;
+
+        boolean changed = false;
+        for (JsonElement dep : (JsonArray) deps) {
+            JsonElement registry = dep.isJsonObject() ? dep.getAsJsonObject().get("registry") : null;
+            if (registry != null && registry.isJsonPrimitive() && isSameIndex(registry.getAsString(), memberIndexUrl)) {
+                dep.getAsJsonObject().remove("registry");
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isSameIndex(String registry, String indexUrl) {
+        String url = registry.startsWith("sparse+") ? registry.substring("sparse+".length()) : registry;
+        if (url.endsWith("/"))
+            url = url.substring(0, url.length() - 1);
+        return url.equals(indexUrl);
+    }
+}
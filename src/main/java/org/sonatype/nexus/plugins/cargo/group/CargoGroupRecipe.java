@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.group;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.sonatype.nexus.plugins.cargo.CargoFormat;
+import org.sonatype.nexus.plugins.cargo.CargoRecipeSupport;
+import org.sonatype.nexus.plugins.cargo.proxy.CargoProxyHandlers;
+import org.sonatype.nexus.repository.Format;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.Type;
+import org.sonatype.nexus.repository.group.GroupFacetImpl;
+import org.sonatype.nexus.repository.group.GroupHandler;
+import org.sonatype.nexus.repository.http.HttpHandlers;
+import org.sonatype.nexus.repository.http.HttpMethods;
+import org.sonatype.nexus.repository.types.GroupType;
+import org.sonatype.nexus.repository.view.ConfigurableViewFacet;
+import org.sonatype.nexus.repository.view.Route;
+import org.sonatype.nexus.repository.view.Router;
+import org.sonatype.nexus.repository.view.ViewFacet;
+import org.sonatype.nexus.repository.view.matchers.ActionMatcher;
+import org.sonatype.nexus.repository.view.matchers.logic.LogicMatchers;
+import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher;
+
+@Named(CargoGroupRecipe.NAME)
+@Singleton
+class CargoGroupRecipe
+        extends CargoRecipeSupport
+{
+    public static final String NAME = "cargo-group";
+
+    /** Index entries laid out by CrateCoordinates. config.json is generated rather than merged. */
+    private static final String INDEX_ENTRY_PATH = "1/[^/]+|2/[^/]+|3/[^/]/[^/]+|[^/][^/]/[^/][^/]/[^/]+";
+
+    @Inject
+    protected Provider<GroupFacetImpl> groupFacet;
+
+    @Inject
+    protected Provider<CargoGroupIndexFacet> groupIndexFacet;
+
+    @Inject
+    protected GroupHandler groupHandler;
+
+    @Inject
+    protected CargoProxyHandlers.ConfigJson configJsonHandler;
+
+    @Inject
+    protected CargoGroupHandlers.MergedIndexFile mergedIndexFileHandler;
+
+    @Inject
+    CargoGroupRecipe(@Named(GroupType.NAME) final Type type, @Named(CargoFormat.NAME) final Format format) {
+        super(type, format);
+    }
+
+    @Override
+    public void apply(Repository repository) throws Exception {
+        repository.attach(groupFacet.get());
+        repository.attach(storageFacet.get());
+        repository.attach(securityFacet.get());
+        repository.attach(configure(viewFacet.get()));
+        repository.attach(attributesFacet.get());
+        repository.attach(groupIndexFacet.get());
+    }
+
+    private ViewFacet configure(final ConfigurableViewFacet facet) {
+        Router.Builder builder = new Router.Builder();
+
+        // Sparse index configuration, pointing downloads at this group
+        builder.route(new Route.Builder()
+                .matcher(LogicMatchers.and(new ActionMatcher(HttpMethods.HEAD, HttpMethods.GET),
+                        new TokenMatcher("/{repo_name:index}/config.json")))
+                .handler(timingHandler).handler(securityHandler).handler(exceptionHandler)
+                .handler(conditionalRequestHandler).handler(contentHeadersHandler)
+                .handler(configJsonHandler).create());
+
+        // Sparse index files, merged across all members
+        builder.route(new Route.Builder()
+                .matcher(LogicMatchers.and(new ActionMatcher(HttpMethods.HEAD, HttpMethods.GET),
+                        new TokenMatcher("/{repo_name:index}/{path:" + INDEX_ENTRY_PATH + "}")))
+                .handler(timingHandler).handler(securityHandler).handler(exceptionHandler)
+                .handler(conditionalRequestHandler).handler(contentHeadersHandler)
+                .handler(mergedIndexFileHandler).create());
+
+        // Crate tarballs, served by the first member that has them
+        builder.route(new Route.Builder()
+                .matcher(LogicMatchers.and(new ActionMatcher(HttpMethods.HEAD, HttpMethods.GET),
+                        new TokenMatcher("/api/v1/crates/{name:.+}/{version:[0-9].*}/download")))
+                .handler(timingHandler).handler(securityHandler).handler(exceptionHandler)
+                .handler(handlerContributor).handler(groupHandler).create());
+
+        builder.route(new Route.Builder()
+                .matcher(LogicMatchers.and(new ActionMatcher(HttpMethods.HEAD, HttpMethods.GET),
+                        new TokenMatcher("/{name:.+}-{version:[0-9].*}.crate")))
+                .handler(timingHandler).handler(securityHandler).handler(exceptionHandler)
+                .handler(handlerContributor).handler(groupHandler).create());
+
+        builder.defaultHandlers(HttpHandlers.notFound());
+        facet.configure(builder.create());
+        return facet;
+    }
+}
@@ -46,6 +46,10 @@ class CargoHostedRecipe
 {
     public static final String NAME = "cargo-hosted";
 
+    /** Files served by the sparse index: config.json and the entries laid out by CrateCoordinates. */
+    private static final String SPARSE_INDEX_PATH =
+            "config\\.json|1/[^/]+|2/[^/]+|3/[^/]/[^/]+|[^/][^/]/[^/][^/]/[^/]+";
+
     @Inject
     protected Provider<CargoRegistryFacet> crateStorageFacet;
 
@@ -67,6 +71,12 @@ class CargoHostedRecipe
     @Inject
     protected CargoRegistryV1Handlers.MetadataDownload metadataDownloadHandler;
 
+    @Inject
+    protected CargoRegistryV1Handlers.DownloadCounter downloadCounter;
+
+    @Inject
+    protected CargoRegistryV1Handlers.IndexFileDownload indexFileHandler;
+
     @Inject
     protected CargoRegistryV1Handlers.IndexInfoRefs gitInfoRefsHandler;
 
@@ -114,6 +124,14 @@ class CargoHostedRecipe
                 .handler(conditionalRequestHandler).handler(contentHeadersHandler).handler(unitOfWorkHandler)
                 .handler(gitUploadPackHandler).create());
 
+        // Sparse index protocol (RFC 2789) serving index files over plain HTTP
+        builder.route(new Route.Builder()
+                .matcher(LogicMatchers.and(new ActionMatcher(HttpMethods.HEAD, HttpMethods.GET),
+                        new TokenMatcher("/{repo_name:index}/{path:" + SPARSE_INDEX_PATH + "}")))
+                .handler(timingHandler).handler(securityHandler).handler(exceptionHandler)
+                .handler(conditionalRequestHandler).handler(contentHeadersHandler).handler(unitOfWorkHandler)
+                .handler(indexFileHandler).create());
+
         // Crates.io API v1
         builder.route(new Route.Builder()
                 .matcher(LogicMatchers.and(new ActionMatcher(HttpMethods.GET), new LiteralMatcher("/me")))
@@ -144,22 +162,22 @@ class CargoHostedRecipe
                 .matcher(LogicMatchers.and(new ActionMatcher(HttpMethods.HEAD, HttpMethods.GET),
                         new TokenMatcher("/api/v1/crates/{name:.+}/{version:[0-9].*}/download")))
                 .handler(timingHandler).handler(securityHandler).handler(exceptionHandler)
-                .handler(conditionalRequestHandler).handler(partialFetchHandler).handler(contentHeadersHandler)
-                .handler(unitOfWorkHandler).handler(crateDownloadHandler).create());
+                .handler(downloadCounter).handler(conditionalRequestHandler).handler(partialFetchHandler)
+                .handler(contentHeadersHandler).handler(unitOfWorkHandler).handler(crateDownloadHandler).create());
 
         builder.route(new Route.Builder()
                 .matcher(LogicMatchers.and(new ActionMatcher(HttpMethods.HEAD, HttpMethods.GET),
                         new TokenMatcher("/{name:.+}-{version:[0-9].*}.crate")))
                 .handler(timingHandler).handler(securityHandler).handler(exceptionHandler)
-                .handler(conditionalRequestHandler).handler(partialFetchHandler).handler(contentHeadersHandler)
-                .handler(unitOfWorkHandler).handler(crateDownloadHandler).create());
+                .handler(downloadCounter).handler(conditionalRequestHandler).handler(partialFetchHandler)
+                .handler(contentHeadersHandler).handler(unitOfWorkHandler).handler(crateDownloadHandler).create());
 
         builder.route(new Route.Builder()
                 .matcher(LogicMatchers.and(new ActionMatcher(HttpMethods.HEAD, HttpMethods.GET),
                         new TokenMatcher("/{name:.+}-{version:[0-9].*}.json")))
                 .handler(timingHandler).handler(securityHandler).handler(exceptionHandler)
-                .handler(conditionalRequestHandler).handler(partialFetchHandler).handler(contentHeadersHandler)
-                .handler(unitOfWorkHandler).handler(metadataDownloadHandler).create());
+                .handler(downloadCounter).handler(conditionalRequestHandler).handler(partialFetchHandler)
+                .handler(contentHeadersHandler).handler(unitOfWorkHandler).handler(metadataDownloadHandler).create());
 
         builder.defaultHandlers(HttpHandlers.notFound());
         facet.configure(builder.create());
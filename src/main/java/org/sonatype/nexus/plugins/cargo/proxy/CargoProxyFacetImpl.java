@@ -0,0 +1,314 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.proxy;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import com.google.common.collect.Lists;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.vdurmont.semver4j.Semver;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.HttpClientUtils;
+
+import org.sonatype.nexus.blobstore.api.Blob;
+import org.sonatype.nexus.common.collect.AttributesMap;
+import org.sonatype.nexus.common.entity.EntityHelper;
+import org.sonatype.nexus.common.entity.EntityId;
+import org.sonatype.nexus.common.hash.HashAlgorithm;
+import org.sonatype.nexus.plugins.cargo.CargoDownloadFacet;
+import org.sonatype.nexus.plugins.cargo.CrateCoordinates;
+import org.sonatype.nexus.plugins.cargo.registry.DownloadStats;
+import org.sonatype.nexus.plugins.cargo.registry.assets.AssetKind;
+import org.sonatype.nexus.plugins.cargo.registry.assets.AssetKindTarballAttributes;
+import org.sonatype.nexus.repository.cache.CacheController;
+import org.sonatype.nexus.repository.cache.CacheInfo;
+import org.sonatype.nexus.repository.httpclient.HttpClientFacet;
+import org.sonatype.nexus.repository.proxy.ProxyFacetSupport;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.storage.AssetBlob;
+import org.sonatype.nexus.repository.storage.AssetEntityAdapter;
+import org.sonatype.nexus.repository.storage.Bucket;
+import org.sonatype.nexus.repository.storage.StorageFacet;
+import org.sonatype.nexus.repository.storage.StorageTx;
+import org.sonatype.nexus.repository.storage.TempBlob;
+import org.sonatype.nexus.repository.transaction.TransactionalStoreBlob;
+import org.sonatype.nexus.repository.transaction.TransactionalStoreMetadata;
+import org.sonatype.nexus.repository.transaction.TransactionalTouchBlob;
+import org.sonatype.nexus.repository.transaction.TransactionalTouchMetadata;
+import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.ContentTypes;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher;
+import org.sonatype.nexus.repository.view.payloads.BlobPayload;
+import org.sonatype.nexus.transaction.UnitOfWork;
+
+/*
+ * Proxies a Cargo registry that serves a sparse index. Index files are fetched from the remote URL
+ * and revalidated after the metadata max age. Crate tarballs are fetched from the upstream's
+ * download location, which is read from the "dl" field of its config.json, and cached like any
+ * other proxied content. Reads write nothing; downloads are recorded in batches like on a hosted
+ * repository, so that purging unused content keeps what clients still use.
+ */
+@Named
+public class CargoProxyFacetImpl
+        extends ProxyFacetSupport
+        implements CargoDownloadFacet
+{
+    private static final List<HashAlgorithm> HASH_ALGORITHMS = Lists.newArrayList(HashAlgorithm.SHA1, HashAlgorithm.SHA256);
+
+    // Markers that make Cargo treat "dl" as a template rather than a prefix.
+    private static final String[] DOWNLOAD_TEMPLATE_MARKERS =
+            {"{crate}", "{version}", "{prefix}", "{lowerprefix}", "{sha256-checksum}"};
+
+    // The upstream's "dl" field, together with the remote URL it was read from.
+    private volatile Map.Entry<URI, String> upstreamDownload;
+
+    private final DownloadStats downloadStats;
+
+    @Inject
+    public CargoProxyFacetImpl(
+            @Named("${nexus.cargo.downloadStats.flushSeconds:-60}") long downloadStatsFlushSeconds)
+    {
+        this.downloadStats = new DownloadStats(downloadStatsFlushSeconds);
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        this.downloadStats.start(getRepository().getName(), this::flushDownloadStats);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        this.downloadStats.stop();
+        flushDownloadStats();
+        super.doStop();
+    }
+
+    @Override
+    public void recordDownload(Content content) {
+        Asset asset = content.getAttributes().get(Asset.class);
+        if (asset != null) {
+            this.downloadStats.record(EntityHelper.id(asset));
+        }
+    }
+
+    private void flushDownloadStats() {
+        this.downloadStats.flush(facet(StorageFacet.class), this::saveDownloadStats);
+    }
+
+    /* Marks the downloaded assets, which is what purging unused content goes by. */
+    @TransactionalStoreMetadata
+    protected void saveDownloadStats(Map<EntityId, Long> downloads) {
+        StorageTx tx = UnitOfWork.currentTx();
+        Bucket bucket = tx.findBucket(getRepository());
+        for (EntityId asset_id : downloads.keySet()) {
+            Asset asset = tx.findAsset(asset_id, bucket);
+            if (asset == null) {
+                continue;
+            }
+
+            asset.markAsDownloaded();
+            tx.saveAsset(asset);
+        }
+    }
+
+    @Nullable
+    @Override
+    protected Content getCachedContent(Context context) throws IOException {
+        return getAsset(getAssetName(context));
+    }
+
+    @Override
+    protected Content store(Context context, Content content) throws IOException {
+        AssetKind assetKind = context.getAttributes().require(AssetKind.class);
+        StorageFacet storageFacet = facet(StorageFacet.class);
+        try (TempBlob tempBlob = storageFacet.createTempBlob(content, HASH_ALGORITHMS)) {
+            return saveAsset(assetKind, getAssetName(context), tempBlob, content.getAttributes());
+        }
+    }
+
+    @Override
+    protected void indicateVerified(Context context, Content content, CacheInfo cacheInfo) throws IOException {
+        setCacheInfo(getAssetName(context), cacheInfo);
+    }
+
+    @Override
+    protected Content fetch(Context context, @Nullable Content stale) throws IOException {
+        // Resolving a tarball's location can itself fail; as an IOException
+        // that is handled like any other unreachable remote.
+        return fetch(getFetchUrl(context), context, stale);
+    }
+
+    @Override
+    protected String getUrl(@Nonnull Context context) {
+        // Only describes the request; fetch() above resolves where it really
+        // goes. This must not reach the upstream, so a tarball is described
+        // by the remote URL until its download location is known.
+        AssetKind assetKind = context.getAttributes().require(AssetKind.class);
+        Map<String, String> tokens = context.getAttributes().require(TokenMatcher.State.class).getTokens();
+        if (assetKind == AssetKind.INDEX)
+            return tokens.get("path");
+
+        URI remoteUrl = getRemoteUrl();
+        Map.Entry<URI, String> download = this.upstreamDownload;
+        if (download != null && download.getKey().equals(remoteUrl)) {
+            try {
+                return expandDownloadTemplate(download.getValue(), tokens.get("name"), tokens.get("version"));
+            }
+            catch (IOException e) {
+                // Not a template that can be expanded here.
+            }
+        }
+        return remoteUrl.toString();
+    }
+
+    @Nonnull
+    @Override
+    protected CacheController getCacheController(@Nonnull Context context) {
+        AssetKind assetKind = context.getAttributes().require(AssetKind.class);
+        return cacheControllerHolder.require(assetKind.getCacheType());
+    }
+
+    @Nullable
+    @TransactionalTouchBlob
+    protected Content getAsset(String name) {
+        StorageTx tx = UnitOfWork.currentTx();
+        Asset asset = tx.findAssetWithProperty(AssetEntityAdapter.P_NAME, name, tx.findBucket(getRepository()));
+        if (asset == null)
+            return null;
+        return toContent(asset, tx.requireBlob(asset.requireBlobRef()));
+    }
+
+    @TransactionalStoreBlob
+    protected Content saveAsset(AssetKind assetKind, String name, TempBlob tempBlob, AttributesMap contentAttributes)
+            throws IOException
+    {
+        StorageTx tx = UnitOfWork.currentTx();
+        Bucket bucket = tx.findBucket(getRepository());
+
+        Asset asset = tx.findAssetWithProperty(AssetEntityAdapter.P_NAME, name, bucket);
+        if (asset == null) {
+            asset = tx.createAsset(bucket, getRepository().getFormat());
+            asset.name(name);
+            asset.attributes().set(AssetEntityAdapter.P_ASSET_KIND, assetKind.name());
+        }
+
+        String contentType =
+                assetKind == AssetKind.INDEX ? ContentTypes.TEXT_PLAIN : AssetKindTarballAttributes.CONTENT_TYPE_TARBALL;
+        AssetBlob assetBlob = tx.setBlob(asset, name, tempBlob, null, contentType, true);
+        Content.applyToAsset(asset, Content.maintainLastModified(asset, contentAttributes));
+        tx.saveAsset(asset);
+        return toContent(asset, assetBlob.getBlob());
+    }
+
+    @TransactionalTouchMetadata
+    protected void setCacheInfo(String name, CacheInfo cacheInfo) {
+        StorageTx tx = UnitOfWork.currentTx();
+        Asset asset = tx.findAssetWithProperty(AssetEntityAdapter.P_NAME, name, tx.findBucket(getRepository()));
+        if (asset == null)
+            return;
+        CacheInfo.applyToAsset(asset, cacheInfo);
+        tx.saveAsset(asset);
+    }
+
+    private static Content toContent(Asset asset, Blob blob) {
+        Content content = new Content(new BlobPayload(blob, asset.requireContentType()));
+        Content.extractFromAsset(asset, HASH_ALGORITHMS, content.getAttributes());
+        return content;
+    }
+
+    /* Proxied files use the same asset names as a hosted registry. */
+    private static String getAssetName(Context context) {
+        AssetKind assetKind = context.getAttributes().require(AssetKind.class);
+        Map<String, String> tokens = context.getAttributes().require(TokenMatcher.State.class).getTokens();
+        if (assetKind == AssetKind.INDEX)
+            return "index/" + tokens.get("path");
+        return tokens.get("name") + "-" + tokens.get("version") + ".crate";
+    }
+
+    /* Index files are relative to the remote URL; tarballs come from the upstream's "dl" location. */
+    private String getFetchUrl(Context context) throws IOException {
+        AssetKind assetKind = context.getAttributes().require(AssetKind.class);
+        Map<String, String> tokens = context.getAttributes().require(TokenMatcher.State.class).getTokens();
+        if (assetKind == AssetKind.INDEX)
+            return tokens.get("path");
+        return expandDownloadTemplate(getUpstreamDownload(), tokens.get("name"), tokens.get("version"));
+    }
+
+    private String getUpstreamDownload() throws IOException {
+        URI remoteUrl = getRemoteUrl();
+        Map.Entry<URI, String> download = this.upstreamDownload;
+        if (download != null && download.getKey().equals(remoteUrl))
+            return download.getValue();
+
+        String dl = readDownloadLocation(facet(HttpClientFacet.class).getHttpClient(), remoteUrl);
+        this.upstreamDownload = new SimpleImmutableEntry<URI, String>(remoteUrl, dl);
+        return dl;
+    }
+
+    /* Reads the "dl" field of the config.json served at the given registry URL. */
+    static String readDownloadLocation(HttpClient client, URI remoteUrl) throws IOException {
+        HttpResponse response = client.execute(new HttpGet(remoteUrl.resolve("config.json")));
+        try {
+            int status = response.getStatusLine().getStatusCode();
+            if (status != HttpStatus.SC_OK)
+                throw new IOException("Upstream config.json returned status " + status);
+
+            JsonElement json = new JsonParser().parse(
+                    new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8));
+            JsonElement dl = json.isJsonObject() ? json.getAsJsonObject().get("dl") : null;
+            if (dl == null || !dl.isJsonPrimitive())
+                throw new IOException("Upstream config.json has no download location");
+            return dl.getAsString();
+        }
+        finally {
+            HttpClientUtils.closeQuietly(response);
+        }
+    }
+
+    /* Expands a "dl" value the way Cargo does for the given crate version. */
+    static String expandDownloadTemplate(String dl, String name, String version) throws IOException {
+        boolean isTemplate = false;
+        for (String marker : DOWNLOAD_TEMPLATE_MARKERS)
+            isTemplate |= dl.contains(marker);
+        if (!isTemplate)
+            return dl + "/" + name + "/" + version + "/download";
+
+        // The checksum is only known from the index entry, which is not at hand here.
+        if (dl.contains("{sha256-checksum}"))
+            throw new IOException("Download templates using {sha256-checksum} are not supported");
+
+        String indexPath = new CrateCoordinates(name, new Semver(version)).getIndexEntryPath();
+        String prefix = indexPath.substring(0, indexPath.lastIndexOf('/'));
+        return dl.replace("{crate}", name).replace("{version}", version).replace("{prefix}", prefix)
+                .replace("{lowerprefix}", prefix.toLowerCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.proxy;
+
+import javax.annotation.Nonnull;
+import javax.inject.Named;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.plugins.cargo.registry.assets.AssetKind;
+import org.sonatype.nexus.repository.http.HttpResponses;
+import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.ContentTypes;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.Handler;
+import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.repository.view.payloads.StringPayload;
+
+import com.google.gson.JsonObject;
+
+public final class CargoProxyHandlers
+{
+    /* Tags the request with the kind of asset its route serves, for use by the proxy facet. */
+    static Handler assetKind(AssetKind assetKind) {
+        return context -> {
+            context.getAttributes().set(AssetKind.class, assetKind);
+            return context.proceed();
+        };
+    }
+
+    /**
+     * Serves the config.json of a proxy's or group's index. The file of the upstream or of a
+     * member points Cargo elsewhere, so the repository answers with one pointing downloads at
+     * itself. There is no "api" entry, as neither accepts publishes.
+     */
+    @Named
+    public static class ConfigJson
+            extends ComponentSupport
+            implements Handler
+    {
+        @Override
+        public Response handle(@Nonnull final Context context) throws Exception {
+            String repositoryUrl = context.getRepository().getUrl();
+            if (repositoryUrl == null)
+                return HttpResponses.notFound("Repository URL is not known yet");
+
+            JsonObject config = new JsonObject();
+            config.addProperty("dl", repositoryUrl + "/api/v1/crates");
+            return HttpResponses.ok(new Content(new StringPayload(config.toString(), ContentTypes.APPLICATION_JSON)));
+        }
+    }
+}
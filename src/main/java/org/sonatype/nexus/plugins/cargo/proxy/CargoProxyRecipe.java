@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.proxy;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.sonatype.nexus.plugins.cargo.CargoFormat;
+import org.sonatype.nexus.plugins.cargo.CargoRecipeSupport;
+import org.sonatype.nexus.plugins.cargo.registry.assets.AssetKind;
+import org.sonatype.nexus.plugins.cargo.registry.v1.CargoRegistryV1Handlers;
+import org.sonatype.nexus.repository.Format;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.Type;
+import org.sonatype.nexus.repository.http.HttpHandlers;
+import org.sonatype.nexus.repository.http.HttpMethods;
+import org.sonatype.nexus.repository.proxy.ProxyHandler;
+import org.sonatype.nexus.repository.types.ProxyType;
+import org.sonatype.nexus.repository.view.ConfigurableViewFacet;
+import org.sonatype.nexus.repository.view.Route;
+import org.sonatype.nexus.repository.view.Router;
+import org.sonatype.nexus.repository.view.ViewFacet;
+import org.sonatype.nexus.repository.view.matchers.ActionMatcher;
+import org.sonatype.nexus.repository.view.matchers.logic.LogicMatchers;
+import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher;
+
+@Named(CargoProxyRecipe.NAME)
+@Singleton
+class CargoProxyRecipe
+        extends CargoRecipeSupport
+{
+    public static final String NAME = "cargo-proxy";
+
+    /** Index entries laid out by CrateCoordinates. config.json is generated rather than proxied. */
+    private static final String INDEX_ENTRY_PATH = "1/[^/]+|2/[^/]+|3/[^/]/[^/]+|[^/][^/]/[^/][^/]/[^/]+";
+
+    @Inject
+    protected Provider<CargoProxyFacetImpl> proxyFacet;
+
+    @Inject
+    protected ProxyHandler proxyHandler;
+
+    @Inject
+    protected CargoProxyHandlers.ConfigJson configJsonHandler;
+
+    // Runs inside the conditional request handler, see DownloadCounter.
+    @Inject
+    protected CargoRegistryV1Handlers.DownloadCounter downloadCounter;
+
+    @Inject
+    CargoProxyRecipe(@Named(ProxyType.NAME) final Type type, @Named(CargoFormat.NAME) final Format format) {
+        super(type, format);
+    }
+
+    @Override
+    public void apply(Repository repository) throws Exception {
+        repository.attach(securityFacet.get());
+        repository.attach(configure(viewFacet.get()));
+        repository.attach(httpClientFacet.get());
+        repository.attach(negativeCacheFacet.get());
+        repository.attach(proxyFacet.get());
+        repository.attach(storageFacet.get());
+        repository.attach(searchFacet.get());
+        repository.attach(attributesFacet.get());
+        repository.attach(componentMaintenanceFacet.get());
+        repository.attach(purgeUnusedFacet.get());
+    }
+
+    private ViewFacet configure(final ConfigurableViewFacet facet) {
+        Router.Builder builder = new Router.Builder();
+
+        // Sparse index configuration, pointing downloads at this repository
+        builder.route(new Route.Builder()
+                .matcher(LogicMatchers.and(new ActionMatcher(HttpMethods.HEAD, HttpMethods.GET),
+                        new TokenMatcher("/{repo_name:index}/config.json")))
+                .handler(timingHandler).handler(securityHandler).handler(exceptionHandler)
+                .handler(conditionalRequestHandler).handler(contentHeadersHandler)
+                .handler(configJsonHandler).create());
+
+        // Sparse index files, revalidated against the upstream index
+        builder.route(new Route.Builder()
+                .matcher(LogicMatchers.and(new ActionMatcher(HttpMethods.HEAD, HttpMethods.GET),
+                        new TokenMatcher("/{repo_name:index}/{path:" + INDEX_ENTRY_PATH + "}")))
+                .handler(timingHandler).handler(securityHandler).handler(exceptionHandler)
+                .handler(handlerContributor).handler(negativeCacheHandler).handler(conditionalRequestHandler)
+                .handler(partialFetchHandler).handler(contentHeadersHandler).handler(downloadCounter)
+                .handler(unitOfWorkHandler).handler(CargoProxyHandlers.assetKind(AssetKind.INDEX))
+                .handler(proxyHandler).create());
+
+        // Crate tarballs, fetched from the upstream's download location
+        builder.route(new Route.Builder()
+                .matcher(LogicMatchers.and(new ActionMatcher(HttpMethods.HEAD, HttpMethods.GET),
+                        new TokenMatcher("/api/v1/crates/{name:.+}/{version:[0-9].*}/download")))
+                .handler(timingHandler).handler(securityHandler).handler(exceptionHandler)
+                .handler(handlerContributor).handler(negativeCacheHandler).handler(conditionalRequestHandler)
+                .handler(partialFetchHandler).handler(contentHeadersHandler).handler(downloadCounter)
+                .handler(unitOfWorkHandler).handler(CargoProxyHandlers.assetKind(AssetKind.TARBALL))
+                .handler(proxyHandler).create());
+
+        builder.route(new Route.Builder()
+                .matcher(LogicMatchers.and(new ActionMatcher(HttpMethods.HEAD, HttpMethods.GET),
+                        new TokenMatcher("/{name:.+}-{version:[0-9].*}.crate")))
+                .handler(timingHandler).handler(securityHandler).handler(exceptionHandler)
+                .handler(handlerContributor).handler(negativeCacheHandler).handler(conditionalRequestHandler)
+                .handler(partialFetchHandler).handler(contentHeadersHandler).handler(downloadCounter)
+                .handler(unitOfWorkHandler).handler(CargoProxyHandlers.assetKind(AssetKind.TARBALL))
+                .handler(proxyHandler).create());
+
+        builder.defaultHandlers(HttpHandlers.notFound());
+        facet.configure(builder.create());
+        return facet;
+    }
+}
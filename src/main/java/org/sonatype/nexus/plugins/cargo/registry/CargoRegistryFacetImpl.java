@@ -14,7 +14,6 @@
 package org.sonatype.nexus.plugins.cargo.registry;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -23,11 +22,14 @@ import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Objects;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.validation.constraints.NotNull;
 import javax.validation.groups.Default;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.eventbus.Subscribe;
 import com.google.common.hash.HashCode;
 import com.google.gson.Gson;
@@ -38,7 +40,11 @@ import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
 
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.sonatype.nexus.blobstore.api.BlobStore;
 import org.sonatype.nexus.common.collect.AttributesMap;
+import org.sonatype.nexus.common.entity.EntityHelper;
+import org.sonatype.nexus.common.entity.EntityId;
 import org.sonatype.nexus.common.hash.HashAlgorithm;
 import org.sonatype.nexus.email.EmailManager;
 import org.sonatype.nexus.plugins.cargo.CargoRegistryFacet;
@@ -54,6 +60,7 @@ import org.sonatype.nexus.repository.config.Configuration;
 import org.sonatype.nexus.repository.config.ConfigurationFacet;
 import org.sonatype.nexus.repository.config.WritePolicy;
 import org.sonatype.nexus.repository.http.HttpResponses;
+import org.sonatype.nexus.repository.storage.Asset;
 import org.sonatype.nexus.repository.storage.Bucket;
 import org.sonatype.nexus.repository.storage.Component;
 import org.sonatype.nexus.repository.storage.StorageFacet;
@@ -64,7 +71,9 @@ import org.sonatype.nexus.repository.transaction.TransactionalTouchBlob;
 import org.sonatype.nexus.repository.transaction.TransactionalTouchMetadata;
 import org.sonatype.nexus.repository.types.HostedType;
 import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.ContentTypes;
 import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.repository.view.payloads.BytesPayload;
 import org.sonatype.nexus.transaction.UnitOfWork;
 
 import static org.sonatype.nexus.repository.config.ConfigurationConstants.STORAGE;
@@ -108,16 +117,30 @@ public class CargoRegistryFacetImpl
 
     private StorageConfig storageConfig;
 
+    // The config.json most recently written to the index by this node.
+    private volatile String writtenConfigJson;
+
+    private static final String P_DOWNLOAD_COUNT = "download-count";
+
+    private final DownloadStats downloadStats;
+
+    // Tarball asset ids by crate file basename, so a download needs no query.
+    private final Cache<String, EntityId> tarballAssetIds;
+
     @Inject
     protected CargoRegistryFacetImpl(EmailManager emailManager,
                                      ComponentKindCrateAttributes crateAttributes,
                                      AssetKindTarballAttributes tarballAttributes,
-                                     AssetKindMetadataAttributes metadataAttributes)
+                                     AssetKindMetadataAttributes metadataAttributes,
+                                     @Named("${nexus.cargo.downloadStats.flushSeconds:-60}") long downloadStatsFlushSeconds,
+                                     @Named("${nexus.cargo.tarballCacheSize:-10000}") long tarballCacheSize)
     {
         this.emailManager = emailManager;
         this.crateAttributes = crateAttributes;
         this.tarballAttributes = tarballAttributes;
         this.metadataAttributes = metadataAttributes;
+        this.downloadStats = new DownloadStats(downloadStatsFlushSeconds);
+        this.tarballAssetIds = CacheBuilder.newBuilder().maximumSize(tarballCacheSize).build();
     }
 
     @Override
@@ -134,9 +157,22 @@ public class CargoRegistryFacetImpl
         storageConfig = facet(ConfigurationFacet.class).readSection(configuration, STORAGE, StorageConfig.class);
     }
 
+    @Override
+    protected void doStart() throws Exception {
+        this.downloadStats.start(getRepository().getName(), this::flushDownloadStats);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        this.downloadStats.stop();
+        flushDownloadStats();
+    }
+
     @Override
     protected void doDestroy() throws Exception {
         config = null;
+        writtenConfigJson = null;
+        tarballAssetIds.invalidateAll();
     }
 
     @Subscribe
@@ -151,8 +187,6 @@ public class CargoRegistryFacetImpl
     }
 
     @Override
-    @TransactionalStoreMetadata
-    @TransactionalStoreBlob
     public void writeConfigJson() throws Exception {
         // Check that the repo URL is known. When a fixed URL is not set, the
         // URL is detected from the request URL and can be null until a request
@@ -161,9 +195,6 @@ public class CargoRegistryFacetImpl
         if (requestUrl == null)
             return;
 
-        GitRepositoryFacet gitFacet = this.getRepository().facet(GitRepositoryFacet.class);
-        Repository indexRepo = gitFacet.getGitRepository("index");
-
         // Generate config.json with the current repository URL
         JsonObject config = new JsonObject();
         config.addProperty("dl", this.getRepository().getUrl() + "/api/v1/crates");
@@ -173,8 +204,16 @@ public class CargoRegistryFacetImpl
         allowedRegistries.add(new JsonPrimitive(this.config.allowedRegistries.toString()));
         config.add("allowed-registries", allowedRegistries);
 
-        gitFacet.replaceFile(indexRepo, this.indexBranch, "config.json",
-                config.toString().getBytes(StandardCharsets.UTF_8));
+        // Every index request calls this. The index is only touched when the
+        // rendered file differs from the last one written by this node.
+        String configJson = config.toString();
+        if (configJson.equals(this.writtenConfigJson))
+            return;
+
+        GitRepositoryFacet gitFacet = this.getRepository().facet(GitRepositoryFacet.class);
+        Repository indexRepo = gitFacet.getGitRepository("index");
+        gitFacet.replaceFile(indexRepo, this.indexBranch, "config.json", configJson.getBytes(StandardCharsets.UTF_8));
+        this.writtenConfigJson = configJson;
     }
 
     @Override
@@ -184,63 +223,100 @@ public class CargoRegistryFacetImpl
         StorageTx tx = UnitOfWork.currentTx();
         Bucket bucket = tx.findBucket(this.getRepository());
 
-        ByteArrayOutputStream crate_index_entry = new ByteArrayOutputStream();
-
-        for (Component component : this.crateAttributes.findAllVersions(this.getRepository(),
-                crateId.getName())) {
-            Content crate_metadata_json = this.metadataAttributes.getAssetContent(bucket,
-                    component);
-
-            final AttributesMap attributesMap = tarballAttributes.getAssetContent(bucket, component).getAttributes();
-            //noinspection unchecked
-            Map<HashAlgorithm, HashCode> hashMap = (Map<HashAlgorithm, HashCode>) attributesMap.get(CONTENT_HASH_CODES_MAP);
-            HashCode sha256Hash = Objects.requireNonNull(hashMap).get(HashAlgorithm.SHA256);
-
-            try (InputStream is = crate_metadata_json.openInputStream()) {
-                try (InputStreamReader reader = new InputStreamReader(is)) {
-                    JsonObject sourceManifest = new JsonParser().parse(reader).getAsJsonObject();
-
-                    JsonObject result = new JsonObject();
-                    result.addProperty("name", sourceManifest.get("name").getAsString());
-                    result.addProperty("vers", sourceManifest.get("vers").getAsString());
-                    result.add("features", sourceManifest.get("features").getAsJsonObject());
-                    result.addProperty("cksum", sha256Hash.toString());
-
-                    JsonArray deps = new JsonArray();
-                    for (JsonElement element: sourceManifest.getAsJsonArray("deps")){
-                        JsonObject sourceObj = element.getAsJsonObject();
-                        JsonObject obj = new JsonObject();
-                        obj.addProperty("name", sourceObj.get("name").getAsString());
-                        obj.addProperty("req", sourceObj.get("version_req").getAsString());
-                        obj.add("features", sourceObj.get("features").getAsJsonArray());
-                        obj.addProperty("optional", sourceObj.get("optional").getAsBoolean());
-                        obj.addProperty("default_features", sourceObj.get("default_features").getAsBoolean());
-                        obj.addProperty("kind", "normal");
-                        /*
-                         * absent 'registry' property signifies 'from *this* registry'
-                         * https://github.com/rust-lang/cargo/blob/e1fb17631eb1b3665cdbe45b1c186111577ef512/src/cargo/ops/registry.rs#L197-L198
-                         */
-                        if (sourceObj.has("registry")) {
-                            obj.addProperty("registry", sourceObj.get("registry").getAsString());
-                        } else {
-                            obj.addProperty("registry", this.getRepository().getUrl() + "/index");
-                        }
-                        deps.add(obj);
-                    }
-                    result.add("deps", deps);
-
-                    result.addProperty("yanked", false);
-                    crate_index_entry.write(result.toString().getBytes(StandardCharsets.UTF_8));
-                }
-            }
-            crate_index_entry.write('\n');
+        Component component = this.crateAttributes.find(this.getRepository(), crateId);
+        if (component == null)
+            return;
+
+        // Versions published before index entries were stored on the
+        // component are rendered from their metadata once and remembered.
+        String indexEntry = this.crateAttributes.getIndexEntry(component);
+        if (indexEntry == null) {
+            indexEntry = renderIndexEntry(bucket, component);
+            this.crateAttributes.setIndexEntry(component, indexEntry);
+            tx.saveComponent(component);
         }
 
         GitRepositoryFacet gitFacet = this.getRepository().facet(GitRepositoryFacet.class);
         Repository indexRepo = gitFacet.getGitRepository("index");
 
-        gitFacet.replaceFile(indexRepo, this.indexBranch, crateId.getIndexEntryPath(),
-                crate_index_entry.toByteArray());
+        final String versionEntry = indexEntry;
+        gitFacet.updateFile(indexRepo, this.indexBranch, crateId.getIndexEntryPath(),
+                current -> mergeIndexEntry(current, crateId.getVersion().getValue(), versionEntry));
+    }
+
+    /*
+     * Replaces the line for the given version in a crate's index file, or appends it if the version
+     * is not listed yet. Every other line is kept as is.
+     */
+    private static byte[] mergeIndexEntry(byte[] current, String version, String versionEntry) {
+        StringBuilder merged = new StringBuilder();
+        boolean replaced = false;
+        if (current != null) {
+            for (String line : new String(current, StandardCharsets.UTF_8).split("\n")) {
+                if (line.isEmpty())
+                    continue;
+
+                JsonElement vers = new JsonParser().parse(line).getAsJsonObject().get("vers");
+                if (vers != null && vers.getAsString().equals(version)) {
+                    line = versionEntry;
+                    replaced = true;
+                }
+                merged.append(line).append('\n');
+            }
+        }
+        if (!replaced) {
+            merged.append(versionEntry).append('\n');
+        }
+        return merged.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String renderIndexEntry(Bucket bucket, Component component) throws IOException {
+        Content crate_metadata_json = this.metadataAttributes.getAssetContent(bucket, component);
+
+        final AttributesMap attributesMap = tarballAttributes.getAssetContent(bucket, component).getAttributes();
+        //noinspection unchecked
+        Map<HashAlgorithm, HashCode> hashMap = (Map<HashAlgorithm, HashCode>) attributesMap.get(CONTENT_HASH_CODES_MAP);
+        HashCode sha256Hash = Objects.requireNonNull(hashMap).get(HashAlgorithm.SHA256);
+
+        try (InputStream is = crate_metadata_json.openInputStream()) {
+            try (InputStreamReader reader = new InputStreamReader(is)) {
+                return renderIndexEntry(new JsonParser().parse(reader).getAsJsonObject(), sha256Hash);
+            }
+        }
+    }
+
+    private String renderIndexEntry(JsonObject sourceManifest, HashCode sha256Hash) {
+        JsonObject result = new JsonObject();
+        result.addProperty("name", sourceManifest.get("name").getAsString());
+        result.addProperty("vers", sourceManifest.get("vers").getAsString());
+        result.add("features", sourceManifest.get("features").getAsJsonObject());
+        result.addProperty("cksum", sha256Hash.toString());
+
+        JsonArray deps = new JsonArray();
+        for (JsonElement element: sourceManifest.getAsJsonArray("deps")){
+            JsonObject sourceObj = element.getAsJsonObject();
+            JsonObject obj = new JsonObject();
+            obj.addProperty("name", sourceObj.get("name").getAsString());
+            obj.addProperty("req", sourceObj.get("version_req").getAsString());
+            obj.add("features", sourceObj.get("features").getAsJsonArray());
+            obj.addProperty("optional", sourceObj.get("optional").getAsBoolean());
+            obj.addProperty("default_features", sourceObj.get("default_features").getAsBoolean());
+            obj.addProperty("kind", "normal");
+            /*
+             * absent 'registry' property signifies 'from *this* registry'
+             * https://github.com/rust-lang/cargo/blob/e1fb17631eb1b3665cdbe45b1c186111577ef512/src/cargo/ops/registry.rs#L197-L198
+             */
+            if (sourceObj.has("registry")) {
+                obj.addProperty("registry", sourceObj.get("registry").getAsString());
+            } else {
+                obj.addProperty("registry", this.getRepository().getUrl() + "/index");
+            }
+            deps.add(obj);
+        }
+        result.add("deps", deps);
+
+        result.addProperty("yanked", false);
+        return result.toString();
     }
 
     @Override
@@ -263,18 +339,24 @@ public class CargoRegistryFacetImpl
             return HttpResponses.forbidden("Crate version already exists and update is denied by write policy of this repository");
         }
 
+        Asset tarballAsset;
         if (crateComponent == null) {
             log.info("Create new crate: " + crateId.getFileBasename());
             crateComponent = this.crateAttributes.create(this.getRepository(), crateId);
             this.metadataAttributes.createAsset(bucket, crateComponent,
                     new ByteArrayInputStream(new Gson().toJson(metadata).getBytes(StandardCharsets.UTF_8)));
-            this.tarballAttributes.createAsset(bucket, crateComponent, tarball);
+            tarballAsset = this.tarballAttributes.createAsset(bucket, crateComponent, tarball);
         } else {
             log.info("Updating existing crate: " + crateId.getFileBasename());
             this.metadataAttributes.updateAsset(bucket, crateComponent,
                     new ByteArrayInputStream(new Gson().toJson(metadata).getBytes(StandardCharsets.UTF_8)));
-            this.tarballAttributes.updateAsset(bucket, crateComponent, tarball);
+            tarballAsset = this.tarballAttributes.updateAsset(bucket, crateComponent, tarball);
         }
+
+        // Render this version's index line while the metadata is at hand.
+        this.crateAttributes.setIndexEntry(crateComponent, renderIndexEntry(metadata.getAsJsonObject(),
+                Objects.requireNonNull(tarballAsset.getChecksum(HashAlgorithm.SHA256))));
+        tx.saveComponent(crateComponent);
         return HttpResponses.ok();
     }
 
@@ -298,12 +380,112 @@ public class CargoRegistryFacetImpl
     @TransactionalTouchBlob
     public Content downloadTarball(CrateCoordinates crateId) throws IOException {
         StorageTx tx = UnitOfWork.currentTx();
+        Bucket bucket = tx.findBucket(this.getRepository());
 
+        // A remembered asset id is loaded directly. The name lookup is only
+        // needed the first time, or after the asset was deleted.
+        String key = crateId.getFileBasename();
+        EntityId assetId = this.tarballAssetIds.getIfPresent(key);
+        Asset asset = assetId == null ? null : tx.findAsset(assetId, bucket);
+        if (asset == null) {
+            this.tarballAssetIds.invalidate(key);
+            asset = tarballAttributes.findAsset(bucket, crateId);
+            if (asset == null)
+                return null;
+            this.tarballAssetIds.put(key, EntityHelper.id(asset));
+        }
+
+        BlobStore blobStore = this.getRepository().facet(StorageFacet.class).blobStore();
+        return tarballAttributes.getAssetContent(asset, blobStore);
+    }
+
+    @Override
+    public boolean isRedeployAllowed() {
+        return storageConfig == null || storageConfig.writePolicy == null
+                || storageConfig.writePolicy.checkUpdateAllowed();
+    }
+
+    @Override
+    public void recordDownload(Content content) {
+        Asset asset = content.getAttributes().get(Asset.class);
+        if (asset != null) {
+            this.downloadStats.record(EntityHelper.id(asset));
+        }
+    }
+
+    /* Writes the downloads counted since the last flush to their assets. */
+    private void flushDownloadStats() {
+        this.downloadStats.flush(this.getRepository().facet(StorageFacet.class), this::saveDownloadStats);
+    }
+
+    @TransactionalStoreMetadata
+    protected void saveDownloadStats(Map<EntityId, Long> downloads) {
+        StorageTx tx = UnitOfWork.currentTx();
         Bucket bucket = tx.findBucket(this.getRepository());
-        Component component = crateAttributes.find(this.getRepository(), crateId);
-        if (component == null)
+        for (Map.Entry<EntityId, Long> entry : downloads.entrySet()) {
+            Asset asset = tx.findAsset(entry.getKey(), bucket);
+            if (asset == null) {
+                continue;
+            }
+
+            asset.markAsDownloaded();
+            Long count = asset.formatAttributes().get(P_DOWNLOAD_COUNT, Long.class);
+            asset.formatAttributes().set(P_DOWNLOAD_COUNT, (count == null ? 0 : count) + entry.getValue());
+            tx.saveAsset(asset);
+        }
+    }
+
+    @Override
+    public int repackIndex() throws IOException {
+        Repository indexRepo = findIndexRepository();
+        return indexRepo == null ? 0 : this.getRepository().facet(GitRepositoryFacet.class).repack(indexRepo);
+    }
+
+    @Override
+    public void squashIndex() throws IOException {
+        Repository indexRepo = findIndexRepository();
+        if (indexRepo != null)
+            this.getRepository().facet(GitRepositoryFacet.class).squash(indexRepo, this.indexBranch);
+    }
+
+    @Override
+    public int collectIndexGarbage() throws IOException {
+        Repository indexRepo = findIndexRepository();
+        return indexRepo == null ? 0
+                : this.getRepository().facet(GitRepositoryFacet.class).collectGarbage(indexRepo);
+    }
+
+    /* Looks up the index's git repository in a unit of work of its own. */
+    @Nullable
+    private Repository findIndexRepository() throws IOException {
+        UnitOfWork.begin(this.getRepository().facet(StorageFacet.class).txSupplier());
+        try {
+            return this.getRepository().facet(GitRepositoryFacet.class).getGitRepository("index");
+        }
+        finally {
+            UnitOfWork.end();
+        }
+    }
+
+    @Override
+    @TransactionalTouchMetadata
+    @TransactionalTouchBlob
+    public Content downloadIndexFile(String entryPath) throws IOException {
+        GitRepositoryFacet gitFacet = this.getRepository().facet(GitRepositoryFacet.class);
+        Repository indexRepo = gitFacet.getGitRepository("index");
+        if (indexRepo == null)
+            return null;
+
+        byte[] bytes = gitFacet.readFile(indexRepo, this.indexBranch, entryPath);
+        if (bytes == null)
             return null;
 
-        return tarballAttributes.getAssetContent(bucket, component);
+        // The git blob id of the file doubles as a stable ETag so sparse
+        // clients can revalidate with If-None-Match.
+        String contentType = entryPath.endsWith(".json") ? ContentTypes.APPLICATION_JSON : ContentTypes.TEXT_PLAIN;
+        Content content = new Content(new BytesPayload(bytes, contentType));
+        content.getAttributes().set(Content.CONTENT_ETAG,
+                new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, bytes).name());
+        return content;
     }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.registry;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.sonatype.goodies.common.Loggers;
+import org.sonatype.nexus.common.entity.EntityId;
+import org.sonatype.nexus.repository.storage.StorageFacet;
+import org.sonatype.nexus.transaction.UnitOfWork;
+
+/*
+ * Counts asset downloads in memory so that serving an asset never writes to the database. The
+ * counts are drained periodically and written to the assets in one transaction. Used by hosted
+ * and proxy repositories alike; each decides what a download writes to its asset.
+ */
+public class DownloadStats
+{
+    // Both the increment and the removal are atomic per key, so a download
+    // counted while the map is drained lands either in this drain or in the
+    // next one, never in neither.
+    private final ConcurrentMap<EntityId, Long> counters = new ConcurrentHashMap<EntityId, Long>();
+
+    private final long flushSeconds;
+
+    private ScheduledExecutorService flusher;
+
+    public DownloadStats(long flushSeconds) {
+        this.flushSeconds = Math.max(1, flushSeconds);
+    }
+
+    public void record(EntityId asset_id) {
+        this.counters.merge(asset_id, 1L, Long::sum);
+    }
+
+    /* Runs flush every flushSeconds on a thread of its own until stop(). */
+    public void start(String name, Runnable flush) {
+        this.flusher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cargo-download-stats-" + name).build());
+        this.flusher.scheduleWithFixedDelay(flush, this.flushSeconds, this.flushSeconds, TimeUnit.SECONDS);
+    }
+
+    /* Stops the periodic flush, waiting for one in progress. The caller flushes what is left. */
+    public void stop() throws InterruptedException {
+        this.flusher.shutdown();
+        this.flusher.awaitTermination(this.flushSeconds, TimeUnit.SECONDS);
+        this.flusher = null;
+    }
+
+    /*
+     * Writes the downloads counted since the previous flush with save, which is called in a unit of
+     * work of the given storage. If save fails, the downloads are counted again so the next flush
+     * retries them.
+     */
+    public void flush(StorageFacet storage_facet, Consumer<Map<EntityId, Long>> save) {
+        Map<EntityId, Long> downloads = drain();
+        if (downloads.isEmpty()) {
+            return;
+        }
+
+        UnitOfWork.begin(storage_facet.txSupplier());
+        try {
+            save.accept(downloads);
+        }
+        catch (RuntimeException e) {
+            restore(downloads);
+            Loggers.getLogger(this).warn("Failed to record downloads for {} assets, retrying with the next flush",
+                    downloads.size(), e);
+        }
+        finally {
+            UnitOfWork.end();
+        }
+    }
+
+    /* Returns the downloads counted since the previous drain, by asset. */
+    Map<EntityId, Long> drain() {
+        Map<EntityId, Long> downloads = new HashMap<EntityId, Long>();
+        for (EntityId asset_id : this.counters.keySet()) {
+            Long count = this.counters.remove(asset_id);
+            if (count != null) {
+                downloads.put(asset_id, count);
+            }
+        }
+        return downloads;
+    }
+
+    /* Adds drained downloads back, for a drain that could not be written. */
+    void restore(Map<EntityId, Long> downloads) {
+        for (Map.Entry<EntityId, Long> entry : downloads.entrySet()) {
+            this.counters.merge(entry.getKey(), entry.getValue(), Long::sum);
+        }
+    }
+}
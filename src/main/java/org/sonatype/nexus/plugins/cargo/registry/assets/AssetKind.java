@@ -20,7 +20,7 @@ import org.sonatype.nexus.repository.cache.CacheControllerHolder.CacheType;
 
 public enum AssetKind
 {
-    TARBALL(CacheControllerHolder.CONTENT), METADATA(CacheControllerHolder.METADATA);
+    TARBALL(CacheControllerHolder.CONTENT), METADATA(CacheControllerHolder.METADATA), INDEX(CacheControllerHolder.METADATA);
 
     private final CacheType cacheType;
 
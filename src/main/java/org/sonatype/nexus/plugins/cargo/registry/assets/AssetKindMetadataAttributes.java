@@ -111,10 +111,8 @@ public class AssetKindMetadataAttributes
         if (blob == null)
             return null;
 
-        if (asset.markAsDownloaded()) {
-            tx.saveAsset(asset);
-        }
-
+        // Downloads are counted by the facet and written in batches, so
+        // serving content stays read-only.
         final String contentType = asset.contentType();
         final Content content = new Content(new BlobPayload(blob, contentType));
         Content.extractFromAsset(asset, HASH_ALGORITHMS, content.getAttributes());
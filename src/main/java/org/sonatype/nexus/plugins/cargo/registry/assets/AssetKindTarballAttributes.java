@@ -17,15 +17,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
 
 import org.sonatype.nexus.blobstore.api.Blob;
 import org.sonatype.nexus.blobstore.api.BlobRef;
+import org.sonatype.nexus.blobstore.api.BlobStore;
 import org.sonatype.nexus.common.hash.HashAlgorithm;
+import org.sonatype.nexus.plugins.cargo.CrateCoordinates;
 import org.sonatype.nexus.repository.storage.Asset;
 import org.sonatype.nexus.repository.storage.AssetEntityAdapter;
 import org.sonatype.nexus.repository.storage.Bucket;
@@ -99,14 +103,33 @@ public class AssetKindTarballAttributes
         return Iterables.getOnlyElement(objAssets, null);
     }
 
-    @TransactionalTouchBlob
-    public Content getAssetContent(Bucket bucket, Component component) {
+    /*
+     * Finds a crate version's tarball by its asset name, which is derived from the coordinates, so
+     * no component lookup is needed first.
+     */
+    @Nullable
+    @TransactionalTouchMetadata
+    public Asset findAsset(Bucket bucket, CrateCoordinates coordinates) {
         StorageTx tx = UnitOfWork.currentTx();
+        Asset asset = tx.findAssetWithProperty(AssetEntityAdapter.P_NAME, getAssetName(coordinates), bucket);
+        if (asset == null || !AssetKind.TARBALL.name().equals(asset.attributes().get(AssetEntityAdapter.P_ASSET_KIND)))
+            return null;
+        return asset;
+    }
 
+    @TransactionalTouchBlob
+    public Content getAssetContent(Bucket bucket, Component component) {
         final Asset asset = findAsset(bucket, component);
         if (asset == null)
             return null;
 
+        return getAssetContent(asset);
+    }
+
+    @TransactionalTouchBlob
+    public Content getAssetContent(Asset asset) {
+        StorageTx tx = UnitOfWork.currentTx();
+
         BlobRef blobref = asset.blobRef();
         if (blobref == null)
             return null;
@@ -115,18 +138,41 @@ public class AssetKindTarballAttributes
         if (blob == null)
             return null;
 
-        if (asset.markAsDownloaded()) {
-            tx.saveAsset(asset);
-        }
-
+        // Downloads are counted by the facet and written in batches, so
+        // serving content stays read-only.
         final String contentType = asset.contentType();
         final Content content = new Content(new BlobPayload(blob, contentType));
         Content.extractFromAsset(asset, HASH_ALGORITHMS, content.getAttributes());
         return content;
     }
 
+    /*
+     * Content for serving a tarball to a client. The blob is only fetched from the blob store when
+     * the payload is opened, and the ETag is the tarball's SHA256, so a matching If-None-Match is
+     * answered from the asset record alone.
+     */
+    @Nullable
+    @TransactionalTouchMetadata
+    public Content getAssetContent(Asset asset, BlobStore blobStore) {
+        BlobRef blobref = asset.blobRef();
+        if (blobref == null)
+            return null;
+
+        final Content content =
+                new Content(new BlobRefPayload(blobStore, blobref, asset.size(), asset.contentType()));
+        Content.extractFromAsset(asset, HASH_ALGORITHMS, content.getAttributes());
+        HashCode sha256 = asset.getChecksum(HashAlgorithm.SHA256);
+        if (sha256 != null)
+            content.getAttributes().set(Content.CONTENT_ETAG, sha256.toString());
+        return content;
+    }
+
+    private static String getAssetName(CrateCoordinates coordinates) {
+        return coordinates.getFileBasename() + ".crate";
+    }
+
     private Asset save(Bucket bucket, Component component, StorageTx tx, Asset asset, InputStream tarball) throws IOException {
-        String tarballName = crateAttributes.getCoordinates(component).getFileBasename() + ".crate";
+        String tarballName = getAssetName(crateAttributes.getCoordinates(component));
         asset.name(tarballName);
         asset.attributes().set(AssetEntityAdapter.P_ASSET_KIND, AssetKind.TARBALL.name());
         tx.setBlob(asset, tarballName, () -> tarball, HASH_ALGORITHMS, null, CONTENT_TYPE_TARBALL,
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.registry.assets;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.sonatype.nexus.blobstore.api.Blob;
+import org.sonatype.nexus.blobstore.api.BlobRef;
+import org.sonatype.nexus.blobstore.api.BlobStore;
+import org.sonatype.nexus.repository.view.Payload;
+
+/*
+ * Payload of a stored asset that fetches its blob only when the content is actually sent. Size and
+ * content type come from the asset, so a conditional request answered with 304 or a HEAD request
+ * never touches the blob store.
+ */
+class BlobRefPayload
+        implements Payload
+{
+    private final BlobStore blobStore;
+
+    private final BlobRef blobRef;
+
+    private final long size;
+
+    private final String contentType;
+
+    BlobRefPayload(BlobStore blobStore, BlobRef blobRef, long size, String contentType) {
+        this.blobStore = blobStore;
+        this.blobRef = blobRef;
+        this.size = size;
+        this.contentType = contentType;
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException {
+        Blob blob = this.blobStore.get(this.blobRef.getBlobId());
+        if (blob == null)
+            throw new IOException("Missing blob " + this.blobRef);
+        return blob.getInputStream();
+    }
+
+    @Override
+    public long getSize() {
+        return this.size;
+    }
+
+    @Override
+    public String getContentType() {
+        return this.contentType;
+    }
+}
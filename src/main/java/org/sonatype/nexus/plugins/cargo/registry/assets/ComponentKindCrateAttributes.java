@@ -16,6 +16,7 @@ package org.sonatype.nexus.plugins.cargo.registry.assets;
 import java.io.IOException;
 import java.util.Collections;
 
+import javax.annotation.Nullable;
 import javax.inject.Named;
 
 import com.google.common.collect.Iterables;
@@ -37,6 +38,8 @@ public class ComponentKindCrateAttributes
 {
     final private String I_GROUP_CRATE = "crates";
 
+    private final static String P_INDEX_ENTRY = "index-entry";
+
     @TransactionalStoreMetadata
     public Component create(Repository repository, CrateCoordinates coords) throws IOException {
         StorageTx tx = UnitOfWork.currentTx();
@@ -85,4 +88,17 @@ public class ComponentKindCrateAttributes
     public CrateCoordinates getCoordinates(Component component) {
         return new CrateCoordinates(component.name(), new Semver(component.version()));
     }
+
+    /*
+     * The rendered line describing this crate version in the registry index. Stored at publish time
+     * so the index file can be updated without re-reading every version's metadata.
+     */
+    @Nullable
+    public String getIndexEntry(Component component) {
+        return component.formatAttributes().get(P_INDEX_ENTRY, String.class);
+    }
+
+    public void setIndexEntry(Component component, String index_entry) {
+        component.formatAttributes().set(P_INDEX_ENTRY, index_entry);
+    }
 }
@@ -22,13 +22,18 @@ import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.plugins.cargo.CargoDownloadFacet;
 import org.sonatype.nexus.plugins.cargo.CargoRegistryFacet;
 import org.sonatype.nexus.plugins.cargo.CrateCoordinates;
 import org.sonatype.nexus.plugins.cargo.git.GitRepositoryHandlers;
+import org.sonatype.nexus.plugins.cargo.git.PackOperationLimiter;
+import org.sonatype.nexus.plugins.cargo.git.UploadPackFlights;
 import org.sonatype.nexus.plugins.cargo.registry.assets.AssetKindMetadataAttributes;
 import org.sonatype.nexus.plugins.cargo.registry.assets.AssetKindTarballAttributes;
 import org.sonatype.nexus.plugins.cargo.registry.assets.ComponentKindCrateAttributes;
+import org.sonatype.nexus.repository.http.HttpMethods;
 import org.sonatype.nexus.repository.http.HttpResponses;
+import org.sonatype.nexus.repository.http.HttpStatus;
 import org.sonatype.nexus.repository.view.Content;
 import org.sonatype.nexus.repository.view.Context;
 import org.sonatype.nexus.repository.view.Handler;
@@ -38,6 +43,7 @@ import org.sonatype.nexus.security.SecuritySystem;
 
 import com.google.common.base.Preconditions;
 import com.google.common.io.LittleEndianDataInputStream;
+import com.google.common.net.HttpHeaders;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
@@ -46,6 +52,9 @@ import org.apache.commons.io.input.BoundedInputStream;
 
 public final class CargoRegistryV1Handlers
 {
+    private static final String CACHE_CONTROL_IMMUTABLE = "public, max-age=31536000, immutable";
+
+    private static final String CACHE_CONTROL_REVALIDATE = "no-cache";
 
     private static abstract class CrateHandlerSupport
             extends ComponentSupport
@@ -159,7 +168,12 @@ public final class CargoRegistryV1Handlers
             CargoRegistryFacet crates = context.getRepository().facet(CargoRegistryFacet.class);
             Content content = crates.downloadTarball(coords);
             if (content != null) {
-                return HttpResponses.ok(content);
+                Response response = HttpResponses.ok(content);
+                // Without redeploys a published crate never changes, so caches
+                // may keep it forever. Otherwise they revalidate by ETag.
+                response.getHeaders().set(HttpHeaders.CACHE_CONTROL,
+                        crates.isRedeployAllowed() ? CACHE_CONTROL_REVALIDATE : CACHE_CONTROL_IMMUTABLE);
+                return response;
             }
             else {
                 return HttpResponses.notFound("Crate '" + name + "-" + version + "' not found");
@@ -205,6 +219,63 @@ public final class CargoRegistryV1Handlers
         }
     };
 
+    /**
+     * Counts downloads with the repository's {@link CargoDownloadFacet}. Hosted routes run it before
+     * the conditional request handler so that only full GET responses carrying a body are counted;
+     * a 304, a HEAD or a failed download is not. Proxy routes run it after, so that a cached file a
+     * client revalidates counts as used.
+     */
+    @Named
+    public static class DownloadCounter
+            extends ComponentSupport
+            implements Handler
+    {
+        @Override
+        public Response handle(@Nonnull final Context context) throws Exception {
+            Response response = context.proceed();
+            if (HttpMethods.GET.equals(context.getRequest().getAction())
+                    && response.getStatus().getCode() == HttpStatus.OK
+                    && response.getPayload() instanceof Content)
+            {
+                context.getRepository().facet(CargoDownloadFacet.class).recordDownload((Content) response.getPayload());
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Serves a single file of the crate index over plain HTTP for clients using the sparse registry
+     * protocol (RFC 2789). Requires a TokenMatcher that provides the following tokens: - path: Path
+     * of the file relative to the index root. Returns: HttpResponses.ok if the file exists in the
+     * index, HttpResponses.notFound otherwise.
+     */
+    @Named
+    public static class IndexFileDownload
+            extends ComponentSupport
+            implements Handler
+    {
+        @Override
+        public Response handle(@Nonnull final Context context) throws Exception {
+            TokenMatcher.State state = context.getAttributes().require(TokenMatcher.State.class);
+            String path = state.getTokens().get("path");
+
+            Preconditions.checkNotNull(path, "Index file handler called without a 'path' token");
+
+            CargoRegistryFacet crates = context.getRepository().facet(CargoRegistryFacet.class);
+            if (path.equals("config.json")) {
+                crates.writeConfigJson();
+            }
+
+            Content content = crates.downloadIndexFile(path);
+            if (content != null) {
+                return HttpResponses.ok(content);
+            }
+            else {
+                return HttpResponses.notFound("Index file '" + path + "' not found");
+            }
+        }
+    };
+
     @Named
     public static class IndexInfoRefs
             extends GitRepositoryHandlers.InfoRefs
@@ -221,8 +292,8 @@ public final class CargoRegistryV1Handlers
             extends GitRepositoryHandlers.ReceivePackService
     {
         @Inject
-        public IndexRecievePackService(SecuritySystem security) {
-            super(security);
+        public IndexRecievePackService(SecuritySystem security, PackOperationLimiter limiter) {
+            super(security, limiter);
         }
 
         @Override
@@ -236,6 +307,11 @@ public final class CargoRegistryV1Handlers
     public static class IndexUploadPackService
             extends GitRepositoryHandlers.UploadPackService
     {
+        @Inject
+        public IndexUploadPackService(UploadPackFlights flights, PackOperationLimiter limiter) {
+            super(flights, limiter);
+        }
+
         @Override
         public Response handle(Context context) throws Exception {
             context.getRepository().facet(CargoRegistryFacet.class).writeConfigJson();
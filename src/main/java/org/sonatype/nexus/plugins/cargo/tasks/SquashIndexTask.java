@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.tasks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import javax.inject.Named;
+
+import org.sonatype.nexus.plugins.cargo.CargoFormat;
+import org.sonatype.nexus.plugins.cargo.CargoRegistryFacet;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.RepositoryTaskSupport;
+
+/**
+ * Collapses the git index history of a hosted Cargo repository into a single commit, so that a
+ * full clone only transfers the current index.
+ */
+@Named
+public class SquashIndexTask
+        extends RepositoryTaskSupport
+{
+    @Override
+    protected void execute(Repository repository) {
+        try {
+            repository.facet(CargoRegistryFacet.class).squashIndex();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    protected boolean appliesTo(Repository repository) {
+        return CargoFormat.NAME.equals(repository.getFormat().getValue())
+                && repository.optionalFacet(CargoRegistryFacet.class).isPresent();
+    }
+
+    @Override
+    public String getMessage() {
+        return "Squash the git index history of " + getRepositoryField();
+    }
+}
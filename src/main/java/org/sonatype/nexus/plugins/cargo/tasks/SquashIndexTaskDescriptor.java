@@ -0,0 +1,42 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.tasks;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.sonatype.nexus.formfields.RepositoryCombobox;
+import org.sonatype.nexus.plugins.cargo.CargoFormat;
+import org.sonatype.nexus.repository.RepositoryTaskSupport;
+import org.sonatype.nexus.repository.types.HostedType;
+import org.sonatype.nexus.scheduling.TaskDescriptorSupport;
+
+/**
+ * Task descriptor for {@link SquashIndexTask}.
+ */
+@Named
+@Singleton
+public class SquashIndexTaskDescriptor
+        extends TaskDescriptorSupport
+{
+    public static final String TYPE_ID = "repository.cargo.squash-index";
+
+    public SquashIndexTaskDescriptor() {
+        super(TYPE_ID, SquashIndexTask.class, "Cargo - Squash git index history", VISIBLE, EXPOSED,
+                new RepositoryCombobox(RepositoryTaskSupport.REPOSITORY_NAME_FIELD_ID, "Repository",
+                        "Select the hosted Cargo repository whose index history to squash", true)
+                        .includingAnyOfFormats(CargoFormat.NAME).includingAnyOfTypes(HostedType.NAME)
+                        .includeAnEntryForAllRepositories());
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+/*
+ * Repository settings form for a Cargo group repository
+ */
+Ext.define('NX.cargo.view.repository.recipe.CargoGroup', {
+    extend: 'NX.coreui.view.repository.RepositorySettingsForm',
+    alias: 'widget.nx-coreui-repository-cargo-group',
+    requires: [
+        'NX.coreui.view.repository.facet.StorageFacet',
+        'NX.coreui.view.repository.facet.GroupFacet'
+    ],
+
+    /**
+     * @override
+     */
+    initComponent: function () {
+        var me = this;
+
+        me.items = [
+            { xtype: 'nx-coreui-repository-storage-facet' },
+            { xtype: 'nx-coreui-repository-group-facet', format: 'cargo' }
+        ];
+
+        me.callParent();
+    }
+});
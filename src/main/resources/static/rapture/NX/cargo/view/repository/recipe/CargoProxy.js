@@ -0,0 +1,42 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+/*
+ * Repository settings form for a Cargo proxy repository
+ */
+Ext.define('NX.cargo.view.repository.recipe.CargoProxy', {
+    extend: 'NX.coreui.view.repository.RepositorySettingsForm',
+    alias: 'widget.nx-coreui-repository-cargo-proxy',
+    requires: [
+        'NX.coreui.view.repository.facet.ProxyFacet',
+        'NX.coreui.view.repository.facet.StorageFacet',
+        'NX.coreui.view.repository.facet.NegativeCacheFacet',
+        'NX.coreui.view.repository.facet.HttpClientFacet'
+    ],
+
+    /**
+     * @override
+     */
+    initComponent: function () {
+        var me = this;
+
+        me.items = [
+            { xtype: 'nx-coreui-repository-proxy-facet' },
+            { xtype: 'nx-coreui-repository-storage-facet' },
+            { xtype: 'nx-coreui-repository-negativecache-facet' },
+            { xtype: 'nx-coreui-repository-httpclient-facet' }
+        ];
+
+        me.callParent();
+    }
+});
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019, Imperva, Inc. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License Version 1.0, which accompanies this
+ * distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Imperva, the Imperva logo, SecureSphere, Incapsula, CounterBreach,
+ * ThreatRadar, Camouflage, Attack Analytics, Prevoty and design are trademarks
+ * of Imperva, Inc. and its subsidiaries. All other brand or product names are
+ * trademarks or registered trademarks of their respective holders.
+ */
+
+package org.sonatype.nexus.plugins.cargo.proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.common.collect.AttributesMap;
+import org.sonatype.nexus.plugins.cargo.registry.assets.AssetKind;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+public class CargoProxyFacetImplTest
+        extends TestSupport
+{
+    private HttpServer upstream;
+
+    private URI upstreamUrl;
+
+    private final AtomicInteger upstreamRequests = new AtomicInteger();
+
+    private volatile int configStatus = 200;
+
+    private volatile String configJson =
+            "{\"dl\":\"https://static.example.com/crates\",\"api\":\"https://example.com\"}";
+
+    private CloseableHttpClient client;
+
+    @Before
+    public void startUpstream() throws IOException {
+        upstream = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        upstream.createContext("/", exchange -> {
+            upstreamRequests.incrementAndGet();
+            byte[] body = configJson.getBytes(StandardCharsets.UTF_8);
+            int status = exchange.getRequestURI().getPath().equals("/index/config.json") ? configStatus : 404;
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        upstream.start();
+        upstreamUrl = URI.create("http://" + upstream.getAddress().getHostString() + ":"
+                + upstream.getAddress().getPort() + "/index/");
+        client = HttpClients.createDefault();
+    }
+
+    @After
+    public void stopUpstream() throws IOException {
+        client.close();
+        upstream.stop(0);
+    }
+
+    @Test
+    public void readsDownloadLocationFromUpstreamConfig() throws IOException {
+        assertThat(CargoProxyFacetImpl.readDownloadLocation(client, upstreamUrl),
+                is("https://static.example.com/crates"));
+        assertThat(upstreamRequests.get(), is(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnUpstreamConfigError() throws IOException {
+        configStatus = 500;
+        CargoProxyFacetImpl.readDownloadLocation(client, upstreamUrl);
+    }
+
+    @Test(expected = IOException.class)
+    public void failsWithoutDownloadLocation() throws IOException {
+        configJson = "{\"api\":\"https://example.com\"}";
+        CargoProxyFacetImpl.readDownloadLocation(client, upstreamUrl);
+    }
+
+    @Test
+    public void expandsDownloadLocation() throws IOException {
+        assertThat(CargoProxyFacetImpl.expandDownloadTemplate("https://example.com/crates", "serde", "1.0.0"),
+                is("https://example.com/crates/serde/1.0.0/download"));
+        assertThat(CargoProxyFacetImpl.expandDownloadTemplate("https://example.com/{lowerprefix}/{crate}-{version}",
+                "Serde", "1.0.0"), is("https://example.com/se/rd/Serde-1.0.0"));
+    }
+
+    @Test
+    public void getUrlDoesNotContactUpstream() {
+        CargoProxyFacetImpl facet = spy(new CargoProxyFacetImpl(60));
+        doReturn(upstreamUrl).when(facet).getRemoteUrl();
+
+        assertThat(facet.getUrl(context(AssetKind.TARBALL, "name", "serde", "version", "1.0.0")),
+                is(upstreamUrl.toString()));
+        assertThat(facet.getUrl(context(AssetKind.INDEX, "path", "se/rd/serde")), is("se/rd/serde"));
+        assertThat(upstreamRequests.get(), is(0));
+    }
+
+    private static Context context(AssetKind assetKind, String... tokens) {
+        Map<String, String> tokenMap = new HashMap<String, String>();
+        for (int i = 0; i < tokens.length; i += 2) {
+            tokenMap.put(tokens[i], tokens[i + 1]);
+        }
+        TokenMatcher.State state = mock(TokenMatcher.State.class);
+        when(state.getTokens()).thenReturn(tokenMap);
+
+        AttributesMap attributes = new AttributesMap();
+        attributes.set(AssetKind.class, assetKind);
+        attributes.set(TokenMatcher.State.class, state);
+
+        Context context = mock(Context.class);
+        when(context.getAttributes()).thenReturn(attributes);
+        return context;
+    }
+}